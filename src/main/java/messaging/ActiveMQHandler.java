@@ -1,54 +1,228 @@
 /**
  * ActiveMQHandler class manages JMS (Java Message Service) connections and operations using ActiveMQ.
  * Provides functionality for creating queues and topics, sending messages, and setting up message listeners.
+ * Queues carry private messages to one user; topics carry broadcast and group messages, which the
+ * broker fans out to every subscriber from a single publish.
  * Handles connection lifecycle and session management for message-oriented middleware.
+ * Producers are cached per destination, so repeated sends to the same contact reuse one producer.
+ * Chat messages travel as ChatMessage, a BytesMessage whose sender, conversation and id are JMS
+ * properties, so listeners can subscribe with message selectors on them.
+ * Sends are spread over a pool of sessions so they can be made from any thread.
+ * Each destination is sent to persistent or non-persistent according to its delivery mode rules.
+ * Topics can be subscribed durably, so messages published while a user is offline are kept for
+ * them; a BacklogReplayer replays such backlogs page by page when the user comes back.
+ * Consumers take up to the configured prefetch of messages from the broker ahead of handling them;
+ * a PartitionedDispatcher can spread one consumer's messages over several threads.
+ * Bulk sends can go through a MessageBatcher, which commits or confirms many messages at once.
+ * The broker is either an external one reached over TCP or an EmbeddedBroker in this JVM reached
+ * over vm://, chosen with the intercom.broker.mode and intercom.broker.url system properties.
  */
 package messaging;
 
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.ActiveMQSession;
 
 import jakarta.jms.Connection;
-import jakarta.jms.ConnectionFactory;
 import jakarta.jms.Destination;
 import jakarta.jms.JMSException;
 import jakarta.jms.MessageConsumer;
 import jakarta.jms.MessageListener;
-import jakarta.jms.MessageProducer;
 import jakarta.jms.Session;
 import jakarta.jms.TextMessage;
 
 public class ActiveMQHandler {
-    /** URL of the ActiveMQ broker (default: localhost on standard port) */
-    private static final String BROKER_URL = "tcp://localhost:61616";
+    /** URL of the external ActiveMQ broker (default: localhost on standard port) */
+    public static final String DEFAULT_BROKER_URL = "tcp://localhost:61616";
+    
+    /** System property selecting the broker mode: external (default) or embedded */
+    public static final String BROKER_MODE_PROPERTY = "intercom.broker.mode";
+    
+    /** System property overriding the broker URL of either mode */
+    public static final String BROKER_URL_PROPERTY = "intercom.broker.url";
+    
+    /** Topic every user subscribes to for messages addressed to everyone */
+    public static final String BROADCAST_TOPIC = "topic.broadcast";
+    
+    /** Prefix of the topic of a named group chat */
+    public static final String GROUP_TOPIC_PREFIX = "topic.group.";
+    
+    /** Default maximum number of cached producers */
+    public static final int DEFAULT_PRODUCER_CACHE_SIZE = 64;
+    
+    /** Default number of sending sessions: one per available processor */
+    public static final int DEFAULT_SESSION_COUNT = Runtime.getRuntime().availableProcessors();
+    
+    /** Whether the broker runs embedded in this JVM */
+    private final BrokerMode brokerMode;
+    
+    /** URL the connection is made to */
+    private final String brokerUrl;
+    
+    /** Maximum number of cached producers over all sending sessions */
+    private final int producerCacheSize;
+    
+    /** Number of sending sessions */
+    private final int sessionCount;
     
     /** JMS connection to the message broker */
     private Connection connection;
     
-    /** JMS session for creating producers and consumers */
-    private Session session;
+    /** Sending sessions and dedicated listener sessions */
+    private SessionPool sessions;
+    
+    /** Number of queue messages the broker pushes to a consumer ahead of handling, or 0 for the broker default */
+    private int queuePrefetch;
+    
+    /** Delivery mode rules of the destinations sent to */
+    private final DeliveryModes deliveryModes = new DeliveryModes();
+    
+    /** Client id of the connection, which durable subscriptions belong to, or null */
+    private String clientId;
+    
+    /** Batchers created by this handler, closed on disconnect */
+    private final List<MessageBatcher> batchers = new CopyOnWriteArrayList<>();
+
+    /**
+     * Constructs a new ActiveMQHandler with the default producer cache size and session count,
+     * using the broker mode and URL from the system properties.
+     */
+    public ActiveMQHandler() {
+        this(DEFAULT_PRODUCER_CACHE_SIZE);
+    }
+
+    /**
+     * Constructs a new ActiveMQHandler with the default session count,
+     * using the broker mode and URL from the system properties.
+     * 
+     * @param producerCacheSize The maximum number of destinations whose producers are kept open
+     */
+    public ActiveMQHandler(int producerCacheSize) {
+        this(producerCacheSize, DEFAULT_SESSION_COUNT);
+    }
+
+    /**
+     * Constructs a new ActiveMQHandler using the broker mode and URL from the system properties.
+     * 
+     * @param producerCacheSize The maximum number of destinations whose producers are kept open
+     * @param sessionCount The number of sessions sends are spread over
+     */
+    public ActiveMQHandler(int producerCacheSize, int sessionCount) {
+        this(BrokerMode.fromSystemProperties(), System.getProperty(BROKER_URL_PROPERTY),
+                producerCacheSize, sessionCount);
+    }
+
+    /**
+     * Constructs a new ActiveMQHandler.
+     * 
+     * @param brokerMode Whether to connect to an external broker or start and use the embedded one
+     * @param brokerUrl The URL to connect to, or null for the mode's default
+     * @param producerCacheSize The maximum number of destinations whose producers are kept open
+     * @param sessionCount The number of sessions sends are spread over
+     */
+    public ActiveMQHandler(BrokerMode brokerMode, String brokerUrl, int producerCacheSize, int sessionCount) {
+        if (producerCacheSize < 1 || sessionCount < 1) {
+            throw new IllegalArgumentException("Producer cache size and session count must be at least 1");
+        }
+        this.brokerMode = brokerMode;
+        this.brokerUrl = brokerUrl != null ? brokerUrl : brokerMode.getDefaultUrl();
+        this.producerCacheSize = producerCacheSize;
+        this.sessionCount = sessionCount;
+    }
+
+    /**
+     * Sets how many queue messages the broker may push to each consumer before they are handled;
+     * takes effect on the next connect. A small prefetch leaves messages with the broker when the
+     * consumer falls behind, a large one saves round trips under steady load.
+     * 
+     * @param queuePrefetch The prefetch size of queue consumers, or 0 for the broker default
+     */
+    public void setQueuePrefetch(int queuePrefetch) {
+        if (queuePrefetch < 0) {
+            throw new IllegalArgumentException("Queue prefetch must not be negative");
+        }
+        this.queuePrefetch = queuePrefetch;
+    }
+
+    /**
+     * Sets whether messages to a destination are persistent; set rules before connecting.
+     * Persistent messages survive a broker restart on a persistent broker but are sent synchronously;
+     * non-persistent ones, such as presence or typing notices, are sent without waiting and never stored.
+     * 
+     * @param destinationPattern A queue or topic name, or a prefix ending in ">" such as "topic.group.>"
+     * @param deliveryMode DeliveryMode.PERSISTENT or DeliveryMode.NON_PERSISTENT
+     */
+    public void setDeliveryMode(String destinationPattern, int deliveryMode) {
+        deliveryModes.set(destinationPattern, deliveryMode);
+    }
+
+    /**
+     * Sets whether messages to destinations without a delivery mode rule are persistent;
+     * set it before connecting. Messages are persistent unless configured otherwise.
+     * 
+     * @param deliveryMode DeliveryMode.PERSISTENT or DeliveryMode.NON_PERSISTENT
+     */
+    public void setDefaultDeliveryMode(int deliveryMode) {
+        deliveryModes.setDefault(deliveryMode);
+    }
+
+    /**
+     * Sets the client id of the connection; takes effect on the next connect.
+     * Durable subscriptions belong to a client id, so a user's client uses the same one on every
+     * login. The broker accepts only one connection per client id at a time.
+     * 
+     * @param clientId The client id, such as the username, or null for none
+     */
+    public void setClientId(String clientId) {
+        this.clientId = clientId;
+    }
 
     /**
-     * Establishes a connection to the ActiveMQ broker and creates a session.
-     * The session is created with non-transacted mode and auto-acknowledge.
+     * Establishes a connection to the ActiveMQ broker and creates the sending sessions.
+     * In embedded mode the embedded broker is started first if it is not already running.
+     * Sessions are created with non-transacted mode and auto-acknowledge.
      * 
-     * @throws JMSException if there's an error connecting to the broker or creating the session
+     * @throws JMSException if there's an error connecting to the broker or creating the sessions
      */
     public void connect() throws JMSException {
-        ConnectionFactory connectionFactory = new ActiveMQConnectionFactory(BROKER_URL);
+        if (brokerMode == BrokerMode.EMBEDDED) {
+            EmbeddedBroker.getInstance().start();
+        }
+        ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory(brokerUrl);
+        if (queuePrefetch > 0) {
+            connectionFactory.getPrefetchPolicy().setQueuePrefetch(queuePrefetch);
+        }
         connection = connectionFactory.createConnection();
-        connection.start();
-        session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        try {
+            if (clientId != null) {
+                connection.setClientID(clientId);
+            }
+            connection.start();
+            // Each destination maps to one session, so the cache is divided between them
+            int producersPerSession = (producerCacheSize + sessionCount - 1) / sessionCount;
+            sessions = new SessionPool(connection, sessionCount, producersPerSession, deliveryModes);
+        } catch (JMSException e) {
+            connection.close();
+            throw e;
+        }
     }
 
     /**
-     * Closes the JMS session and connection to the broker.
+     * Closes all JMS sessions and the connection to the broker.
      * Should be called when the handler is no longer needed.
      * 
-     * @throws JMSException if there's an error closing the session or connection
+     * @throws JMSException if there's an error closing the connection
      */
     public void disconnect() throws JMSException {
-        if (session != null) {
-            session.close();
+        for (MessageBatcher batcher : batchers) {
+            batcher.close();
+        }
+        batchers.clear();
+        if (sessions != null) {
+            sessions.close();
         }
         if (connection != null) {
             connection.close();
@@ -63,46 +237,275 @@ public class ActiveMQHandler {
      * @throws JMSException if there's an error creating the queue
      */
     public void createQueue(String queueName) throws JMSException {
-        Destination queue = session.createQueue(queueName);
+        sessions.execute(queueName, (session, producers) -> session.createQueue(queueName));
     }
 
     /**
-     * Creates a new topic in the message broker.
-     * Topics are used for publish-subscribe messaging.
+     * Does nothing: the broker creates a topic when it is first published to or subscribed to,
+     * and a topic keeps no messages for subscribers that do not exist yet.
      * 
-     * @param topicName The name of the topic to create
-     * @throws JMSException if there's an error creating the topic
+     * @param topicName The name of the topic
+     * @throws JMSException never
+     * @deprecated Publish with {@link #publish(String, ChatMessage)} and listen with
+     *             {@link #subscribe(String, MessageListener)} or {@link #subscribeDurable}, which use the topic directly
      */
+    @Deprecated
     public void createTopic(String topicName) throws JMSException {
-        Destination topic = session.createTopic(topicName);
     }
 
     /**
-     * Sets up a message listener for a specific destination (queue or topic).
-     * The listener will be notified when messages arrive at the destination.
+     * Sets up a message listener for a queue.
+     * The listener will be notified when messages arrive at the queue.
+     * Each listener gets a session of its own, since messages are delivered on that session's thread.
+     * To listen to a topic, use {@link #subscribe(String, MessageListener)} or {@link #subscribeDurable}.
      * 
-     * @param destinationName The name of the queue or topic to listen to
+     * @param destinationName The name of the queue to listen to
      * @param listener The message listener to handle incoming messages
      * @throws JMSException if there's an error setting up the consumer or listener
      */
     public void setMessageListener(String destinationName, MessageListener listener) throws JMSException {
+        setMessageListener(destinationName, null, listener);
+    }
+
+    /**
+     * Sets up a message listener for the messages of a queue that match a selector.
+     * The broker evaluates the selector, so messages that do not match are never sent to this client.
+     * 
+     * @param destinationName The name of the queue to listen to
+     * @param selector A JMS message selector on the message properties, such as
+     *                 ChatMessage.selectorFor(ChatMessage.SENDER_PROPERTY, "alice"), or null for all messages
+     * @param listener The message listener to handle incoming messages
+     * @throws JMSException if there's an error setting up the consumer or the selector is invalid
+     */
+    public void setMessageListener(String destinationName, String selector, MessageListener listener)
+            throws JMSException {
+        Session session = createConsumerSession(listener);
         Destination destination = session.createQueue(destinationName);
-        MessageConsumer consumer = session.createConsumer(destination);
+        MessageConsumer consumer = session.createConsumer(destination, selector);
         consumer.setMessageListener(listener);
     }
 
+    /**
+     * Subscribes a listener to a topic, such as the broadcast topic or a group chat.
+     * Every message published to the topic while the subscription is open is delivered to it.
+     * Messages published through this handler's own connection are not delivered back.
+     * 
+     * @param topicName The name of the topic
+     * @param listener The message listener to handle published messages
+     * @throws JMSException if there's an error setting up the subscription
+     */
+    public void subscribe(String topicName, MessageListener listener) throws JMSException {
+        subscribe(topicName, null, listener);
+    }
+
+    /**
+     * Subscribes a listener to the messages of a topic that match a selector.
+     * Messages published through this handler's own connection are not delivered back.
+     * 
+     * @param topicName The name of the topic
+     * @param selector A JMS message selector on the message properties, or null for all messages
+     * @param listener The message listener to handle published messages
+     * @throws JMSException if there's an error setting up the subscription or the selector is invalid
+     */
+    public void subscribe(String topicName, String selector, MessageListener listener) throws JMSException {
+        Session session = createConsumerSession(listener);
+        Destination topic = session.createTopic(topicName);
+        MessageConsumer consumer = session.createConsumer(topic, selector, true);
+        consumer.setMessageListener(listener);
+    }
+
+    /**
+     * Subscribes a listener durably to a topic, such as a group chat the user belongs to.
+     * The broker keeps the messages published while the client is offline and delivers them once
+     * the subscription is active again; replay them with a BacklogReplayer before calling this.
+     * Requires a client id. Messages published through this handler's own connection are not kept.
+     * 
+     * @param topicName The name of the topic
+     * @param subscriptionName The name of the subscription, unique for the client id
+     * @param listener The message listener to handle published messages
+     * @throws JMSException if there's an error setting up the subscription
+     */
+    public void subscribeDurable(String topicName, String subscriptionName, MessageListener listener)
+            throws JMSException {
+        Session session = createConsumerSession(listener);
+        MessageConsumer consumer = session.createDurableConsumer(session.createTopic(topicName),
+                subscriptionName, null, true);
+        consumer.setMessageListener(listener);
+    }
+
+    /**
+     * Creates the session of one consumer. Messages are acknowledged when the listener returns, except
+     * for a PartitionedDispatcher, which acknowledges each message itself once a worker has handled it.
+     */
+    private Session createConsumerSession(MessageListener listener) throws JMSException {
+        return sessions.createConsumerSession(listener instanceof PartitionedDispatcher
+                ? ActiveMQSession.INDIVIDUAL_ACKNOWLEDGE : Session.AUTO_ACKNOWLEDGE);
+    }
+
+    /**
+     * Creates a replayer for backlogs on a session of its own.
+     * Add the queue and durable subscriptions to it, page through it until it has no more,
+     * close it, then set up the live listeners.
+     * 
+     * @param pageSize The number of messages handed out and acknowledged together
+     * @return A new replayer
+     * @throws JMSException if its session cannot be created
+     */
+    public BacklogReplayer createBacklogReplayer(int pageSize) throws JMSException {
+        return new BacklogReplayer(sessions.createConsumerSession(Session.CLIENT_ACKNOWLEDGE), pageSize);
+    }
+
+    /**
+     * Returns the topic name of a named group chat. Members subscribe to it and post by publishing to it.
+     * 
+     * @param groupName The name of the group
+     * @return The topic carrying the group's messages
+     */
+    public static String getGroupTopic(String groupName) {
+        return GROUP_TOPIC_PREFIX + groupName;
+    }
+
+    /**
+     * Publishes a text message to a topic; the broker delivers it to every current subscriber.
+     * Safe to call from any thread.
+     * 
+     * @param topicName The name of the topic
+     * @param message The text message to publish
+     * @throws JMSException if there's an error creating the producer or publishing the message
+     */
+    public void publish(String topicName, String message) throws JMSException {
+        sessions.execute(topicName, (session, producers) -> {
+            TextMessage textMessage = session.createTextMessage(message);
+            producers.getTopicProducer(topicName).send(textMessage);
+            return null;
+        });
+    }
+
+    /**
+     * Publishes a chat message to a topic; the broker delivers it to every matching subscriber.
+     * Safe to call from any thread.
+     * 
+     * @param topicName The name of the topic
+     * @param message The chat message to publish
+     * @throws JMSException if there's an error creating the producer or publishing the message
+     */
+    public void publish(String topicName, ChatMessage message) throws JMSException {
+        sessions.execute(topicName, (session, producers) -> {
+            producers.getTopicProducer(topicName).send(message.toMessage(session));
+            return null;
+        });
+    }
+
+    /**
+     * Sends a chat message to a queue.
+     * Safe to call from any thread; sends to different destinations may run in parallel.
+     * 
+     * @param destinationName The name of the queue to send to
+     * @param message The chat message to send
+     * @throws JMSException if there's an error creating the producer or sending the message
+     */
+    public void sendMessage(String destinationName, ChatMessage message) throws JMSException {
+        sessions.execute(destinationName, (session, producers) -> {
+            producers.getProducer(destinationName).send(message.toMessage(session));
+            return null;
+        });
+    }
+
     /**
      * Sends a text message to a specific destination (queue or topic).
-     * Creates a producer for the destination and sends the message.
+     * Uses the cached producer for the destination, creating it on first use.
+     * Safe to call from any thread; sends to different destinations may run in parallel.
      * 
      * @param destinationName The name of the queue or topic to send to
      * @param message The text message to send
      * @throws JMSException if there's an error creating the producer or sending the message
      */
     public void sendMessage(String destinationName, String message) throws JMSException {
-        Destination destination = session.createQueue(destinationName);
-        MessageProducer producer = session.createProducer(destination);
-        TextMessage textMessage = session.createTextMessage(message);
-        producer.send(textMessage);
+        sessions.execute(destinationName, (session, producers) -> {
+            TextMessage textMessage = session.createTextMessage(message);
+            producers.getProducer(destinationName).send(textMessage);
+            return null;
+        });
+    }
+
+    /**
+     * Creates a batching sender with its own session on this handler's connection.
+     * Use it for bulk sends where one broker round trip per message would dominate; submit chat
+     * messages as ChatMessage so they carry the same properties as sendMessage gives them.
+     * It is closed on disconnect if not closed earlier.
+     * 
+     * @param mode Whether batches are committed in a transaction or sent with async confirmations
+     * @param maxBatchSize The number of messages that makes a batch full
+     * @param maxDelayMillis The longest time a message waits for its batch to fill up
+     * @return A new batcher
+     * @throws JMSException if its session cannot be created
+     */
+    public MessageBatcher createBatcher(MessageBatcher.Mode mode, int maxBatchSize, long maxDelayMillis)
+            throws JMSException {
+        MessageBatcher batcher = new MessageBatcher(connection, mode, maxBatchSize, maxDelayMillis, deliveryModes);
+        batchers.add(batcher);
+        return batcher;
+    }
+
+    /** @return The URL the handler connects to */
+    public String getBrokerUrl() {
+        return brokerUrl;
+    }
+
+    /**
+     * Returns how many sends reused a cached producer.
+     * 
+     * @return The number of producer cache hits since connecting
+     */
+    public long getProducerCacheHits() {
+        return sessions == null ? 0 : sessions.getProducerCacheHits();
+    }
+
+    /**
+     * Returns how many sends had to create a producer.
+     * 
+     * @return The number of producer cache misses since connecting
+     */
+    public long getProducerCacheMisses() {
+        return sessions == null ? 0 : sessions.getProducerCacheMisses();
+    }
+
+    /**
+     * Returns how many cached producers were closed to make room for other destinations.
+     * 
+     * @return The number of producer cache evictions since connecting
+     */
+    public long getProducerCacheEvictions() {
+        return sessions == null ? 0 : sessions.getProducerCacheEvictions();
+    }
+
+    /**
+     * Where the broker runs.
+     */
+    public enum BrokerMode {
+        /** A separately started broker, reached over TCP */
+        EXTERNAL,
+        
+        /** A broker started inside this JVM, reached over the vm:// transport */
+        EMBEDDED;
+
+        /** @return The URL used in this mode when none is configured */
+        String getDefaultUrl() {
+            return this == EMBEDDED ? EmbeddedBroker.getVmUrl() : DEFAULT_BROKER_URL;
+        }
+
+        /**
+         * Reads the mode from the intercom.broker.mode system property.
+         * 
+         * @return The configured mode, EXTERNAL if none is set
+         */
+        static BrokerMode fromSystemProperties() {
+            String mode = System.getProperty(BROKER_MODE_PROPERTY, "external");
+            try {
+                return valueOf(mode.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown " + BROKER_MODE_PROPERTY + ": " + mode, e);
+            }
+        }
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,166 @@
+/**
+ * BacklogReplayer class catches a user up on the chat messages that arrived while they were offline.
+ * It pages through the user's queue and durable topic subscriptions in the order the broker stored them,
+ * oldest first: each call receives one page, and the consumers prefetch at most one page, so the client
+ * holds no more than a page or two of the backlog however large it is and can show the first page at once.
+ * Pages come oldest first rather than newest first: a queue or subscription only yields its oldest
+ * message, so reaching the newest page means receiving, and holding or acknowledging, the whole backlog
+ * before anything is shown. Callers that page through to the end still finish on the newest messages.
+ * A page stays unacknowledged until the caller has shown or stored it and calls acknowledge, so closing
+ * the replayer early, logging out or crashing leaves every message not yet acknowledged with the broker,
+ * to be replayed at the next login. The sources are read one after another, the queue first.
+ * Receiving blocks and should run off the UI thread, on one thread at a time; once the backlog is empty
+ * the replayer should be closed, so live listeners can take over the same queue and subscriptions.
+ */
+package messaging;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import jakarta.jms.JMSException;
+import jakarta.jms.Message;
+import jakarta.jms.MessageConsumer;
+import jakarta.jms.Session;
+
+public class BacklogReplayer implements AutoCloseable {
+    /** Default number of messages received and acknowledged together */
+    public static final int DEFAULT_PAGE_SIZE = 200;
+
+    /** How long receiving waits for a message before it considers a backlog empty */
+    private static final long IDLE_TIMEOUT_MILLIS = 500;
+
+    /** Client-acknowledged session the backlog is received on */
+    private final Session session;
+
+    /** Number of messages handed out and acknowledged together */
+    private final int pageSize;
+
+    /** Consumers of the backlogs, read in order */
+    private final List<MessageConsumer> consumers = new ArrayList<>();
+
+    /** Index of the consumer being read; the ones before it are empty */
+    private int current;
+
+    /** Last message received and not yet acknowledged, or null */
+    private Message unacknowledged;
+
+    /** Number of chat messages handed out */
+    private int messageCount;
+
+    /**
+     * Constructs a new BacklogReplayer receiving on its own session.
+     *
+     * @param session A client-acknowledged session used only by this replayer
+     * @param pageSize The number of messages handed out and acknowledged together
+     */
+    BacklogReplayer(Session session, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Page size must be at least 1");
+        }
+        this.session = session;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Adds a queue whose pending messages are replayed.
+     *
+     * @param queueName The name of the queue
+     * @throws JMSException if the consumer cannot be created
+     */
+    public synchronized void addQueue(String queueName) throws JMSException {
+        consumers.add(session.createConsumer(session.createQueue(withPrefetch(queueName))));
+    }
+
+    /**
+     * Adds a durable topic subscription whose stored messages are replayed.
+     * The subscription must be the one ActiveMQHandler.subscribeDurable uses, without selector
+     * and without the handler's own messages, or the broker would replace it and drop its messages.
+     *
+     * @param topicName The name of the topic
+     * @param subscriptionName The name of the durable subscription
+     * @throws JMSException if the consumer cannot be created, for example because the
+     *                      subscription is already active
+     */
+    public synchronized void addDurableSubscription(String topicName, String subscriptionName)
+            throws JMSException {
+        consumers.add(session.createDurableConsumer(session.createTopic(withPrefetch(topicName)),
+                subscriptionName, null, true));
+    }
+
+    /** Limits the broker to pushing one page at a time to the consumer */
+    private String withPrefetch(String destinationName) {
+        return destinationName + "?consumer.prefetchSize=" + pageSize;
+    }
+
+    /**
+     * Receives the next page of the backlog. Blocks until a page is full or the backlogs are empty.
+     * The messages stay unacknowledged until {@link #acknowledge} is called.
+     *
+     * @return Up to one page of messages, oldest first, or an empty list once every backlog is empty
+     * @throws JMSException if receiving fails
+     */
+    public synchronized List<ChatMessage> nextPage() throws JMSException {
+        List<ChatMessage> page = new ArrayList<>();
+        int start = current;
+        int received = 0;
+        while (received < pageSize && current < consumers.size()) {
+            Message message = consumers.get(current).receive(IDLE_TIMEOUT_MILLIS);
+            if (message == null) {
+                current++;
+                continue;
+            }
+            received++;
+            unacknowledged = message;
+            ChatMessage chatMessage = ChatMessage.fromMessage(message);
+            if (chatMessage != null) {
+                page.add(chatMessage);
+            }
+        }
+        if (current > start) {
+            // The page spans several sources; show their messages in the order they were written
+            page.sort(Comparator.comparingLong(ChatMessage::getTimestamp));
+        }
+        messageCount += page.size();
+        return page;
+    }
+
+    /**
+     * Acknowledges every message handed out so far, so the broker deletes them.
+     * Call it once the pages are shown or stored; messages not acknowledged are replayed at the next login.
+     *
+     * @throws JMSException if acknowledging fails
+     */
+    public synchronized void acknowledge() throws JMSException {
+        if (unacknowledged != null) {
+            unacknowledged.acknowledge();
+            unacknowledged = null;
+        }
+    }
+
+    /** @return true until a page found every backlog empty */
+    public synchronized boolean hasMore() {
+        return current < consumers.size();
+    }
+
+    /** @return The number of chat messages handed out */
+    public synchronized int getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * Closes the consumers and the replayer's session.
+     * Messages not yet acknowledged stay with the broker.
+     */
+    @Override
+    public void close() {
+        try {
+            session.close();
+        } catch (JMSException e) {
+            e.printStackTrace();
+        }
+        synchronized (this) {
+            consumers.clear();
+        }
+    }
+}
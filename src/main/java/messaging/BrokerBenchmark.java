@@ -0,0 +1,290 @@
+/**
+ * BrokerBenchmark class is a command-line benchmark of the message broker.
+ * It starts the embedded broker without persistence and with an extra TCP connector.
+ * The latency mode measures the send-to-delivery latency of one message at a time through
+ * ActiveMQHandler, once over the vm:// transport and once over TCP loopback, and reports mean
+ * and percentiles. The fanout mode delivers every message to a number of recipients, once as one
+ * send per recipient queue and once as a single topic publish, and reports how long it took until
+ * every recipient had every message. The persistence mode sends persistent messages from several
+ * threads under every PersistenceProfile, and once non-persistent, and reports messages per second
+ * together with the journal write batches and forced syncs of each profile.
+ *
+ * Usage: java messaging.BrokerBenchmark [latency] [messages]
+ *        java messaging.BrokerBenchmark fanout [recipients] [messages]
+ *        java messaging.BrokerBenchmark persistence [messages] [senders]
+ */
+package messaging;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import jakarta.jms.DeliveryMode;
+
+public final class BrokerBenchmark {
+    /** Queue the benchmark messages are sent through */
+    private static final String QUEUE = "benchmark.latency";
+
+    /** Prefix of the recipient queues of the fan-out benchmark */
+    private static final String FANOUT_QUEUE_PREFIX = "benchmark.fanout.";
+
+    /** Topic of the fan-out benchmark */
+    private static final String FANOUT_TOPIC = "benchmark.fanout";
+
+    /** Prefix of the queues of the persistence benchmark, one per sender */
+    private static final String PERSISTENCE_QUEUE_PREFIX = "benchmark.persistence.";
+
+    /** Size of the messages of the persistence benchmark */
+    private static final int PERSISTENCE_MESSAGE_SIZE = 256;
+
+    /** Messages sent before measuring, to warm up both ends */
+    private static final int WARMUP_MESSAGES = 1000;
+
+    /** Longest time a fan-out round may take before the benchmark gives up */
+    private static final long FANOUT_TIMEOUT_SECONDS = 120;
+
+    private BrokerBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args Optional mode (latency, fanout or persistence) followed by its arguments
+     * @throws Exception if the benchmark cannot run
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("persistence")) {
+            int messages = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+            int senders = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+            runPersistence(messages, senders);
+            return;
+        }
+        boolean fanout = args.length > 0 && args[0].equals("fanout");
+        int first = args.length > 0 && (fanout || args[0].equals("latency")) ? 1 : 0;
+        Path dataDirectory = Files.createTempDirectory("brokerbench");
+        String tcpUrl = "tcp://localhost:" + freePort();
+
+        EmbeddedBroker broker = EmbeddedBroker.getInstance();
+        broker.setPersistent(false);
+        broker.setDataDirectory(dataDirectory);
+        broker.setConnectorUrl(tcpUrl);
+        broker.start();
+        try {
+            if (fanout) {
+                int recipients = args.length > first ? Integer.parseInt(args[first]) : 50;
+                int messages = args.length > first + 1 ? Integer.parseInt(args[first + 1]) : 1000;
+                runFanout(recipients, messages);
+                return;
+            }
+            int messages = args.length > first ? Integer.parseInt(args[first]) : 10000;
+            System.out.printf("%-8s %10s %10s %10s %10s%n", "transport", "mean us", "p50 us", "p99 us", "max us");
+            run("vm", new ActiveMQHandler(ActiveMQHandler.BrokerMode.EMBEDDED, null,
+                    ActiveMQHandler.DEFAULT_PRODUCER_CACHE_SIZE, 1), messages);
+            run("tcp", new ActiveMQHandler(ActiveMQHandler.BrokerMode.EXTERNAL, tcpUrl,
+                    ActiveMQHandler.DEFAULT_PRODUCER_CACHE_SIZE, 1), messages);
+        } finally {
+            broker.stop();
+        }
+    }
+
+    /**
+     * Sends messages one at a time, each only after the previous one was delivered,
+     * and records how long each took from send to listener.
+     */
+    private static void run(String transport, ActiveMQHandler handler, int messages) throws Exception {
+        SynchronousQueue<Long> delivered = new SynchronousQueue<>();
+        handler.connect();
+        try {
+            handler.setMessageListener(QUEUE, message -> {
+                try {
+                    delivered.put(System.nanoTime());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+
+            long[] latencies = new long[messages];
+            for (int i = -WARMUP_MESSAGES; i < messages; i++) {
+                long start = System.nanoTime();
+                handler.sendMessage(QUEUE, "ping " + i);
+                Long end = delivered.poll(10, TimeUnit.SECONDS);
+                if (end == null) {
+                    throw new IllegalStateException("Message " + i + " was not delivered over " + transport);
+                }
+                if (i >= 0) {
+                    latencies[i] = end - start;
+                }
+            }
+
+            Arrays.sort(latencies);
+            long total = 0;
+            for (long latency : latencies) {
+                total += latency;
+            }
+            System.out.printf("%-8s %10.1f %10.1f %10.1f %10.1f%n", transport,
+                    total / (double) messages / 1000,
+                    latencies[messages / 2] / 1000.0,
+                    latencies[(int) (messages * 0.99)] / 1000.0,
+                    latencies[messages - 1] / 1000.0);
+        } finally {
+            handler.disconnect();
+        }
+    }
+
+    /**
+     * Measures both ways of delivering every message to every recipient over vm://.
+     * Recipients listen on a connection of their own, as other users' clients would.
+     */
+    private static void runFanout(int recipients, int messages) throws Exception {
+        System.out.printf("%-8s %10s %10s %10s %14s%n", "delivery", "recipients", "messages", "ms", "deliveries/s");
+        for (boolean topic : new boolean[] { false, true }) {
+            ActiveMQHandler receiver = new ActiveMQHandler(ActiveMQHandler.BrokerMode.EMBEDDED, null,
+                    ActiveMQHandler.DEFAULT_PRODUCER_CACHE_SIZE, 1);
+            ActiveMQHandler sender = new ActiveMQHandler(ActiveMQHandler.BrokerMode.EMBEDDED, null,
+                    Math.max(recipients, 1), 1);
+            receiver.connect();
+            sender.connect();
+            try {
+                CountDownLatch[] round = new CountDownLatch[1];
+                for (int i = 0; i < recipients; i++) {
+                    if (topic) {
+                        receiver.subscribe(FANOUT_TOPIC, message -> round[0].countDown());
+                    } else {
+                        receiver.setMessageListener(FANOUT_QUEUE_PREFIX + i, message -> round[0].countDown());
+                    }
+                }
+                fanoutRound(sender, topic, recipients, Math.min(messages, WARMUP_MESSAGES / 10), round);
+                long elapsed = fanoutRound(sender, topic, recipients, messages, round);
+                System.out.printf("%-8s %10d %10d %10.1f %14.0f%n", topic ? "topic" : "queues",
+                        recipients, messages, elapsed / 1e6, (double) recipients * messages * 1e9 / elapsed);
+            } finally {
+                sender.disconnect();
+                receiver.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Sends one round of messages to every recipient and waits until all were delivered.
+     *
+     * @return The time the round took in nanoseconds
+     */
+    private static long fanoutRound(ActiveMQHandler sender, boolean topic, int recipients, int messages,
+            CountDownLatch[] round) throws Exception {
+        round[0] = new CountDownLatch(recipients * messages);
+        long start = System.nanoTime();
+        for (int m = 0; m < messages; m++) {
+            String text = "fanout " + m;
+            if (topic) {
+                sender.publish(FANOUT_TOPIC, text);
+            } else {
+                for (int i = 0; i < recipients; i++) {
+                    sender.sendMessage(FANOUT_QUEUE_PREFIX + i, text);
+                }
+            }
+        }
+        if (!round[0].await(FANOUT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new IllegalStateException(round[0].getCount() + " deliveries missing after fan-out");
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Measures send throughput under every persistence profile, each on a fresh broker.
+     */
+    private static void runPersistence(int messages, int senders) throws Exception {
+        System.out.printf("%-9s %-15s %10s %12s %10s %10s%n",
+                "profile", "delivery", "ms", "messages/s", "batches", "syncs");
+        for (PersistenceProfile profile : PersistenceProfile.values()) {
+            runPersistence(profile, DeliveryMode.PERSISTENT, messages, senders);
+        }
+        runPersistence(PersistenceProfile.DURABLE, DeliveryMode.NON_PERSISTENT, messages, senders);
+    }
+
+    /**
+     * Sends messages from several threads, each to a queue of its own, until all were accepted.
+     */
+    private static void runPersistence(PersistenceProfile profile, int deliveryMode, int messages, int senders)
+            throws Exception {
+        Path dataDirectory = Files.createTempDirectory("brokerbench");
+        EmbeddedBroker broker = EmbeddedBroker.getInstance();
+        broker.setPersistenceProfile(profile);
+        broker.setDataDirectory(dataDirectory);
+        broker.setConnectorUrl(null);
+        broker.start();
+        ExecutorService executor = Executors.newFixedThreadPool(senders);
+        try {
+            ActiveMQHandler handler = new ActiveMQHandler(ActiveMQHandler.BrokerMode.EMBEDDED, null,
+                    ActiveMQHandler.DEFAULT_PRODUCER_CACHE_SIZE, senders);
+            handler.setDefaultDeliveryMode(deliveryMode);
+            handler.connect();
+            try {
+                String text = "x".repeat(PERSISTENCE_MESSAGE_SIZE);
+                JournalSyncCounter counter = broker.countJournalSyncs();
+                List<CompletableFuture<Void>> sends = new ArrayList<>();
+                long start = System.nanoTime();
+                for (int s = 0; s < senders; s++) {
+                    String queue = PERSISTENCE_QUEUE_PREFIX + s;
+                    int count = messages / senders + (s < messages % senders ? 1 : 0);
+                    sends.add(CompletableFuture.runAsync(() -> {
+                        try {
+                            for (int i = 0; i < count; i++) {
+                                handler.sendMessage(queue, text);
+                            }
+                        } catch (Exception e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }, executor));
+                }
+                CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[0])).join();
+                long elapsed = System.nanoTime() - start;
+
+                String batches = counter == null ? "-" : Long.toString(counter.getBatches());
+                String syncs;
+                if (counter == null) {
+                    syncs = "-";
+                } else if (profile == PersistenceProfile.BATCHED) {
+                    // Periodic syncs are not per batch, so estimate them from the interval
+                    syncs = "~" + Math.max(1, elapsed / 1000000 / PersistenceProfile.BATCHED_SYNC_INTERVAL_MILLIS);
+                } else {
+                    syncs = Long.toString(counter.getSyncs());
+                }
+                System.out.printf("%-9s %-15s %10.1f %12.0f %10s %10s%n", profile.name().toLowerCase(),
+                        deliveryMode == DeliveryMode.PERSISTENT ? "persistent" : "non-persistent",
+                        elapsed / 1e6, messages * 1e9 / elapsed, batches, syncs);
+            } finally {
+                handler.disconnect();
+            }
+        } finally {
+            executor.shutdown();
+            broker.stop();
+            deleteDirectory(dataDirectory);
+        }
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
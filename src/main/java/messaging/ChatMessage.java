@@ -0,0 +1,154 @@
+/**
+ * ChatMessage class represents one chat message as it travels through the broker.
+ * The text is the only body, carried as raw UTF-8 in a BytesMessage; the sender, conversation id,
+ * message id and timestamp travel as JMS properties. The broker can therefore filter and route on
+ * them with message selectors, and consumers read them without parsing the body.
+ */
+package messaging;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import jakarta.jms.BytesMessage;
+import jakarta.jms.JMSException;
+import jakarta.jms.Message;
+import jakarta.jms.Session;
+import jakarta.jms.TextMessage;
+
+public class ChatMessage {
+    /** Property holding the sender's username */
+    public static final String SENDER_PROPERTY = "sender";
+
+    /** Property holding the id of the conversation the message belongs to */
+    public static final String CONVERSATION_PROPERTY = "conversationId";
+
+    /** Property holding the message's unique id */
+    public static final String MESSAGE_ID_PROPERTY = "messageId";
+
+    /** Property holding the time the message was written, in milliseconds since the epoch */
+    public static final String TIMESTAMP_PROPERTY = "timestamp";
+
+    /** Username of the sender */
+    private final String sender;
+
+    /** Id of the conversation, such as a private chat or a group topic */
+    private final String conversationId;
+
+    /** Unique id of the message */
+    private final String messageId;
+
+    /** Time the message was written, in milliseconds since the epoch */
+    private final long timestamp;
+
+    /** Text of the message */
+    private final String text;
+
+    /**
+     * Constructs a new ChatMessage written now, with a fresh message id.
+     *
+     * @param sender The sender's username
+     * @param conversationId The id of the conversation
+     * @param text The text of the message
+     */
+    public ChatMessage(String sender, String conversationId, String text) {
+        this(sender, conversationId, UUID.randomUUID().toString(), System.currentTimeMillis(), text);
+    }
+
+    /**
+     * Constructs a new ChatMessage.
+     *
+     * @param sender The sender's username
+     * @param conversationId The id of the conversation
+     * @param messageId The unique id of the message
+     * @param timestamp The time the message was written, in milliseconds since the epoch
+     * @param text The text of the message
+     */
+    public ChatMessage(String sender, String conversationId, String messageId, long timestamp, String text) {
+        this.sender = sender;
+        this.conversationId = conversationId;
+        this.messageId = messageId;
+        this.timestamp = timestamp;
+        this.text = text;
+    }
+
+    /**
+     * Returns the conversation id of a private chat, which is the same for both participants.
+     *
+     * @param user One participant's username
+     * @param otherUser The other participant's username
+     * @return The conversation id
+     */
+    public static String getPrivateConversationId(String user, String otherUser) {
+        return user.compareTo(otherUser) <= 0 ? user + "|" + otherUser : otherUser + "|" + user;
+    }
+
+    /**
+     * Returns a message selector matching one value of a string property, for use when subscribing.
+     *
+     * @param property The property, such as SENDER_PROPERTY or CONVERSATION_PROPERTY
+     * @param value The value to match
+     * @return The selector expression
+     */
+    public static String selectorFor(String property, String value) {
+        return property + " = '" + value.replace("'", "''") + "'";
+    }
+
+    /**
+     * Creates the JMS message carrying this chat message.
+     *
+     * @param session The session to create the message with
+     * @return A BytesMessage with the text as body and the other fields as properties
+     * @throws JMSException if the message cannot be created
+     */
+    BytesMessage toMessage(Session session) throws JMSException {
+        BytesMessage message = session.createBytesMessage();
+        message.setStringProperty(SENDER_PROPERTY, sender);
+        message.setStringProperty(CONVERSATION_PROPERTY, conversationId);
+        message.setStringProperty(MESSAGE_ID_PROPERTY, messageId);
+        message.setLongProperty(TIMESTAMP_PROPERTY, timestamp);
+        message.writeBytes(text.getBytes(StandardCharsets.UTF_8));
+        return message;
+    }
+
+    /**
+     * Reads a chat message from a received JMS message.
+     * A TextMessage from an older client becomes a chat message with its text and no other fields.
+     *
+     * @param message The received message
+     * @return The chat message, or null if the message is neither a chat message nor text
+     * @throws JMSException if the message cannot be read
+     */
+    public static ChatMessage fromMessage(Message message) throws JMSException {
+        if (message instanceof BytesMessage) {
+            BytesMessage bytesMessage = (BytesMessage) message;
+            byte[] body = new byte[(int) bytesMessage.getBodyLength()];
+            bytesMessage.readBytes(body);
+            long timestamp = message.propertyExists(TIMESTAMP_PROPERTY)
+                    ? message.getLongProperty(TIMESTAMP_PROPERTY) : message.getJMSTimestamp();
+            return new ChatMessage(message.getStringProperty(SENDER_PROPERTY),
+                    message.getStringProperty(CONVERSATION_PROPERTY),
+                    message.getStringProperty(MESSAGE_ID_PROPERTY),
+                    timestamp, new String(body, StandardCharsets.UTF_8));
+        }
+        if (message instanceof TextMessage) {
+            return new ChatMessage(null, null, message.getJMSMessageID(), message.getJMSTimestamp(),
+                    ((TextMessage) message).getText());
+        }
+        return null;
+    }
+
+    /** @return The sender's username, or null if unknown */
+    public String getSender() { return sender; }
+
+    /** @return The id of the conversation, or null if unknown */
+    public String getConversationId() { return conversationId; }
+
+    /** @return The unique id of the message */
+    public String getMessageId() { return messageId; }
+
+    /** @return The time the message was written, in milliseconds since the epoch */
+    public long getTimestamp() { return timestamp; }
+
+    /** @return The text of the message */
+    public String getText() { return text; }
+}
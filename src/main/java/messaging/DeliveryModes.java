@@ -0,0 +1,81 @@
+/**
+ * DeliveryModes class decides per destination whether messages are sent persistent or non-persistent.
+ * Rules name a destination exactly, or a prefix when they end in ">" as in "topic.group.>"; the exact
+ * rule wins, then the longest prefix, then the default. Persistent messages are stored by a persistent
+ * broker and sent synchronously; non-persistent ones are neither stored nor waited for.
+ */
+package messaging;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jakarta.jms.DeliveryMode;
+
+final class DeliveryModes {
+    /** Marks a rule as a prefix rule */
+    private static final String WILDCARD = ">";
+
+    /** Delivery modes of exactly named destinations */
+    private final Map<String, Integer> exact = new ConcurrentHashMap<>();
+
+    /** Delivery modes of destinations by name prefix */
+    private final Map<String, Integer> prefixes = new ConcurrentHashMap<>();
+
+    /** Delivery mode of destinations no rule matches */
+    private volatile int defaultMode = DeliveryMode.PERSISTENT;
+
+    /**
+     * Sets the delivery mode of a destination or, if the pattern ends in ">", of every destination
+     * starting with the rest of the pattern.
+     *
+     * @param pattern The destination name or prefix pattern
+     * @param deliveryMode DeliveryMode.PERSISTENT or DeliveryMode.NON_PERSISTENT
+     */
+    void set(String pattern, int deliveryMode) {
+        check(deliveryMode);
+        if (pattern.endsWith(WILDCARD)) {
+            prefixes.put(pattern.substring(0, pattern.length() - WILDCARD.length()), deliveryMode);
+        } else {
+            exact.put(pattern, deliveryMode);
+        }
+    }
+
+    /**
+     * Sets the delivery mode of destinations no rule matches.
+     *
+     * @param deliveryMode DeliveryMode.PERSISTENT or DeliveryMode.NON_PERSISTENT
+     */
+    void setDefault(int deliveryMode) {
+        check(deliveryMode);
+        defaultMode = deliveryMode;
+    }
+
+    /**
+     * Returns the delivery mode of a destination.
+     *
+     * @param destinationName The name of the queue or topic
+     * @return The delivery mode of the best matching rule
+     */
+    int get(String destinationName) {
+        Integer mode = exact.get(destinationName);
+        if (mode != null) {
+            return mode;
+        }
+        int longest = -1;
+        int result = defaultMode;
+        for (Map.Entry<String, Integer> rule : prefixes.entrySet()) {
+            String prefix = rule.getKey();
+            if (prefix.length() > longest && destinationName.startsWith(prefix)) {
+                longest = prefix.length();
+                result = rule.getValue();
+            }
+        }
+        return result;
+    }
+
+    private static void check(int deliveryMode) {
+        if (deliveryMode != DeliveryMode.PERSISTENT && deliveryMode != DeliveryMode.NON_PERSISTENT) {
+            throw new IllegalArgumentException("Unknown delivery mode: " + deliveryMode);
+        }
+    }
+}
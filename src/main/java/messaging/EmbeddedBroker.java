@@ -0,0 +1,178 @@
+/**
+ * EmbeddedBroker class runs an ActiveMQ broker inside the application's own JVM.
+ * Clients in the same JVM connect over the vm:// transport, which hands messages to the broker
+ * directly instead of marshalling them over a TCP loopback connection. The broker can optionally
+ * also listen on a TCP connector so other machines on the network can use it.
+ * How messages are stored is chosen with a PersistenceProfile.
+ * Implements the Singleton pattern so every handler in the JVM shares one broker.
+ */
+package messaging;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.store.PersistenceAdapter;
+import org.apache.activemq.store.kahadb.KahaDBPersistenceAdapter;
+
+import jakarta.jms.JMSException;
+
+public final class EmbeddedBroker {
+    /** Name of the embedded broker, used in its vm:// URL */
+    public static final String BROKER_NAME = "intercom";
+
+    /** System property naming an additional transport connector, e.g. tcp://0.0.0.0:61616 */
+    public static final String CONNECTOR_PROPERTY = "intercom.broker.connector";
+
+    /** Singleton instance of EmbeddedBroker */
+    private static EmbeddedBroker instance;
+
+    /** Running broker, or null */
+    private BrokerService broker;
+
+    /** How messages are stored */
+    private PersistenceProfile persistenceProfile = PersistenceProfile.fromSystemProperties();
+
+    /** Directory the broker keeps its message store in */
+    private Path dataDirectory = Paths.get("data", "broker");
+
+    /** Additional connector URL for clients outside this JVM, or null for vm:// only */
+    private String connectorUrl = System.getProperty(CONNECTOR_PROPERTY);
+
+    private EmbeddedBroker() {
+    }
+
+    /**
+     * Gets the singleton instance of EmbeddedBroker.
+     *
+     * @return The singleton EmbeddedBroker instance
+     */
+    public static synchronized EmbeddedBroker getInstance() {
+        if (instance == null) {
+            instance = new EmbeddedBroker();
+        }
+        return instance;
+    }
+
+    /**
+     * Sets whether messages are persisted; takes effect on the next start.
+     *
+     * @param persistent true to store messages in KahaDB with the DURABLE profile,
+     *                   false to keep them in memory only
+     */
+    public synchronized void setPersistent(boolean persistent) {
+        this.persistenceProfile = persistent ? PersistenceProfile.DURABLE : PersistenceProfile.MEMORY;
+    }
+
+    /**
+     * Sets how messages are stored; takes effect on the next start.
+     *
+     * @param persistenceProfile The persistence profile
+     */
+    public synchronized void setPersistenceProfile(PersistenceProfile persistenceProfile) {
+        this.persistenceProfile = persistenceProfile;
+    }
+
+    /** @return How messages are stored */
+    public synchronized PersistenceProfile getPersistenceProfile() {
+        return persistenceProfile;
+    }
+
+    /**
+     * Sets the directory of the message store; takes effect on the next start.
+     *
+     * @param dataDirectory The directory the broker keeps its data in
+     */
+    public synchronized void setDataDirectory(Path dataDirectory) {
+        this.dataDirectory = dataDirectory;
+    }
+
+    /**
+     * Sets an additional connector for clients outside this JVM; takes effect on the next start.
+     *
+     * @param connectorUrl A transport URL such as tcp://0.0.0.0:61616, or null for vm:// only
+     */
+    public synchronized void setConnectorUrl(String connectorUrl) {
+        this.connectorUrl = connectorUrl;
+    }
+
+    /**
+     * Starts the broker unless it is already running.
+     *
+     * @throws JMSException if the broker cannot be started
+     */
+    public synchronized void start() throws JMSException {
+        if (broker != null) {
+            return;
+        }
+        BrokerService service = new BrokerService();
+        service.setBrokerName(BROKER_NAME);
+        service.setUseJmx(false);
+        try {
+            persistenceProfile.configure(service, dataDirectory.toFile());
+            if (connectorUrl != null && !connectorUrl.isEmpty()) {
+                service.addConnector(connectorUrl);
+            }
+            service.start();
+            service.waitUntilStarted();
+        } catch (Exception e) {
+            throw new JMSException("Cannot start embedded broker: " + e.getMessage(), null, e);
+        }
+        broker = service;
+    }
+
+    /**
+     * Stops the broker if it is running. Connected clients lose their connection.
+     */
+    public synchronized void stop() {
+        if (broker == null) {
+            return;
+        }
+        try {
+            broker.stop();
+            broker.waitUntilStopped();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        broker = null;
+    }
+
+    /**
+     * Starts counting the journal write batches and forced syncs of the running broker's KahaDB store.
+     *
+     * @return The counter, or null if the broker is not running or keeps messages in memory only
+     */
+    synchronized JournalSyncCounter countJournalSyncs() {
+        if (broker == null) {
+            return null;
+        }
+        JournalSyncCounter counter = new JournalSyncCounter();
+        try {
+            PersistenceAdapter adapter = broker.getPersistenceAdapter();
+            if (!(adapter instanceof KahaDBPersistenceAdapter)) {
+                return null;
+            }
+            ((KahaDBPersistenceAdapter) adapter).getStore().getJournal().setReplicationTarget(counter);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return counter;
+    }
+
+    /** @return true while the broker is running */
+    public synchronized boolean isRunning() {
+        return broker != null;
+    }
+
+    /**
+     * Returns the URL clients in this JVM connect with.
+     * The URL does not create a broker of its own, so connecting fails if this one is not running.
+     *
+     * @return The vm:// URL of the embedded broker
+     */
+    public static String getVmUrl() {
+        return "vm://" + BROKER_NAME + "?create=false";
+    }
+}
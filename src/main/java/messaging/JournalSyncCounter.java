@@ -0,0 +1,48 @@
+/**
+ * JournalSyncCounter class counts the write batches of a KahaDB journal and how many of them were
+ * forced to disk. It is registered as the journal's replication target, which the journal informs of
+ * every batch it writes and whether it syncs it. Syncs made by the periodic sync strategy are not
+ * per batch and are not counted.
+ */
+package messaging;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.activemq.store.kahadb.disk.journal.Location;
+import org.apache.activemq.store.kahadb.disk.journal.ReplicationTarget;
+import org.apache.activemq.util.ByteSequence;
+
+final class JournalSyncCounter implements ReplicationTarget {
+    /** Number of write batches */
+    private final AtomicLong batches = new AtomicLong();
+
+    /** Number of write batches forced to disk */
+    private final AtomicLong syncs = new AtomicLong();
+
+    /** Number of bytes written */
+    private final AtomicLong bytes = new AtomicLong();
+
+    @Override
+    public void replicate(Location location, ByteSequence data, boolean sync) {
+        batches.incrementAndGet();
+        bytes.addAndGet(data.getLength());
+        if (sync) {
+            syncs.incrementAndGet();
+        }
+    }
+
+    /** @return The number of write batches */
+    long getBatches() {
+        return batches.get();
+    }
+
+    /** @return The number of write batches forced to disk */
+    long getSyncs() {
+        return syncs.get();
+    }
+
+    /** @return The number of bytes written */
+    long getBytes() {
+        return bytes.get();
+    }
+}
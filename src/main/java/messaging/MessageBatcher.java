@@ -0,0 +1,339 @@
+/**
+ * MessageBatcher class collects outgoing messages and sends them in batches, so bulk sends
+ * such as group fan-out or history replay are not limited to one broker round trip per message.
+ * Chat messages are sent as ChatMessage builds them, with their sender, conversation, id and timestamp
+ * properties, so batched messages match selectors and partition by sender like single sends.
+ * A batch is sent once it holds the maximum number of messages or its oldest message has waited
+ * for the maximum delay, whichever comes first. In transacted mode a batch is sent on a transacted
+ * session and committed at once; in async mode every message is sent with ActiveMQ async send and
+ * the batch completes when the broker has confirmed all of them.
+ * All messages of a batch share one future, completed when the batch succeeds or fails as a whole.
+ * Closing waits for the broker to confirm the batches still in flight before it closes the session;
+ * any batch not sent or confirmed by then fails.
+ * The batcher owns its session, which only its own sending thread ever uses.
+ */
+package messaging;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.activemq.ActiveMQMessageProducer;
+import org.apache.activemq.AsyncCallback;
+
+import jakarta.jms.Connection;
+import jakarta.jms.JMSException;
+import jakarta.jms.Message;
+import jakarta.jms.Session;
+
+public class MessageBatcher implements AutoCloseable {
+    /** Maximum number of cached producers in the batcher's session */
+    private static final int PRODUCER_CACHE_SIZE = 64;
+
+    /** How long close waits for batches still being sent, and again for their confirmations */
+    private static final long CLOSE_TIMEOUT_SECONDS = 30;
+
+    /** How batches are sent */
+    private final Mode mode;
+
+    /** Number of messages that makes a batch full */
+    private final int maxBatchSize;
+
+    /** Longest time a message waits for its batch to fill up */
+    private final long maxDelayMillis;
+
+    /** Session used only by the sending thread */
+    private final Session session;
+
+    /** Producers of the batcher's session */
+    private final ProducerCache producers;
+
+    /** Single thread sending batches in the order they were sealed, and timing out open batches */
+    private final ScheduledExecutorService sender;
+
+    /** Guards the open batch and the closed flag */
+    private final Object lock = new Object();
+
+    /** Batch currently accepting messages, or null */
+    private Batch open;
+
+    /** Futures of the batches started and not yet committed, confirmed or failed */
+    private final Set<CompletableFuture<Void>> pending = ConcurrentHashMap.newKeySet();
+
+    /** Flag indicating that no further messages are accepted */
+    private boolean closed;
+
+    /**
+     * Constructs a new MessageBatcher with its own session on the given connection.
+     *
+     * @param connection The started connection to send on
+     * @param mode How batches are sent
+     * @param maxBatchSize The number of messages that makes a batch full
+     * @param maxDelayMillis The longest time a message waits for its batch to fill up
+     * @param deliveryModes The delivery mode rules applied to new producers
+     * @throws JMSException if the session cannot be created
+     */
+    MessageBatcher(Connection connection, Mode mode, int maxBatchSize, long maxDelayMillis,
+            DeliveryModes deliveryModes) throws JMSException {
+        if (maxBatchSize < 1 || maxDelayMillis < 0) {
+            throw new IllegalArgumentException("Batch size must be at least 1 and delay must not be negative");
+        }
+        this.mode = mode;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMillis = maxDelayMillis;
+        this.session = mode == Mode.TRANSACTED
+                ? connection.createSession(true, Session.SESSION_TRANSACTED)
+                : connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        this.producers = new ProducerCache(session, PRODUCER_CACHE_SIZE, deliveryModes);
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, task -> {
+            Thread thread = new Thread(task, "message-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        this.sender = executor;
+    }
+
+    /**
+     * Adds a text message to the open batch, starting a new batch if needed.
+     *
+     * @param destinationName The name of the queue to send to
+     * @param text The text of the message
+     * @return The future of the message's batch; completed once the whole batch is committed or
+     *         confirmed, or exceptionally if any part of it fails
+     */
+    public CompletableFuture<Void> submit(String destinationName, String text) {
+        return submit(destinationName, session -> session.createTextMessage(text));
+    }
+
+    /**
+     * Adds a chat message to the open batch, starting a new batch if needed.
+     * It is sent with the same properties as ActiveMQHandler.sendMessage gives it.
+     *
+     * @param destinationName The name of the queue to send to
+     * @param message The chat message
+     * @return The future of the message's batch; completed once the whole batch is committed or
+     *         confirmed, or exceptionally if any part of it fails
+     */
+    public CompletableFuture<Void> submit(String destinationName, ChatMessage message) {
+        return submit(destinationName, message::toMessage);
+    }
+
+    private CompletableFuture<Void> submit(String destinationName, Outgoing message) {
+        synchronized (lock) {
+            if (closed) {
+                CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new IllegalStateException("Message batcher is closed"));
+                return failed;
+            }
+            if (open == null) {
+                Batch started = new Batch(maxBatchSize);
+                pending.add(started.future);
+                started.future.whenComplete((result, failure) -> pending.remove(started.future));
+                open = started;
+                sender.schedule(() -> sealAndSend(started), maxDelayMillis, TimeUnit.MILLISECONDS);
+            }
+            Batch batch = open;
+            batch.add(destinationName, message);
+            if (batch.size() >= maxBatchSize) {
+                open = null;
+                sender.execute(() -> send(batch));
+            }
+            return batch.future;
+        }
+    }
+
+    /**
+     * Sends the open batch without waiting for it to fill up.
+     *
+     * @return The future of the batch that was open, or a completed future if there was none
+     */
+    public CompletableFuture<Void> flush() {
+        synchronized (lock) {
+            Batch batch = open;
+            if (batch == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            open = null;
+            sender.execute(() -> send(batch));
+            return batch.future;
+        }
+    }
+
+    /**
+     * Seals a batch whose delay has expired, unless it was already sent because it filled up.
+     * Runs on the sending thread.
+     */
+    private void sealAndSend(Batch batch) {
+        synchronized (lock) {
+            if (open != batch) {
+                return;
+            }
+            open = null;
+        }
+        send(batch);
+    }
+
+    /**
+     * Sends one batch. Runs on the sending thread.
+     */
+    private void send(Batch batch) {
+        try {
+            if (mode == Mode.TRANSACTED) {
+                sendTransacted(batch);
+            } else {
+                sendAsync(batch);
+            }
+        } catch (JMSException | RuntimeException e) {
+            batch.future.completeExceptionally(e);
+        }
+    }
+
+    private void sendTransacted(Batch batch) throws JMSException {
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                Message message = batch.messages.get(i).create(session);
+                producers.getProducer(batch.destinations.get(i)).send(message);
+            }
+            session.commit();
+        } catch (JMSException | RuntimeException e) {
+            try {
+                session.rollback();
+            } catch (JMSException rollbackFailure) {
+                e.addSuppressed(rollbackFailure);
+            }
+            throw e;
+        }
+        batch.future.complete(null);
+    }
+
+    private void sendAsync(Batch batch) throws JMSException {
+        AtomicInteger outstanding = new AtomicInteger(batch.size());
+        AsyncCallback callback = new AsyncCallback() {
+            @Override
+            public void onSuccess() {
+                if (outstanding.decrementAndGet() == 0) {
+                    batch.future.complete(null);
+                }
+            }
+
+            @Override
+            public void onException(JMSException exception) {
+                batch.future.completeExceptionally(exception);
+            }
+        };
+        for (int i = 0; i < batch.size(); i++) {
+            Message message = batch.messages.get(i).create(session);
+            ((ActiveMQMessageProducer) producers.getProducer(batch.destinations.get(i))).send(message, callback);
+        }
+    }
+
+    /**
+     * Sends the open batch, waits for queued batches to be handed to the broker and for the broker
+     * to confirm them, then closes the session. Batches not sent or confirmed in time fail.
+     * Messages submitted afterwards fail immediately.
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        flush();
+        shutdown(sender);
+        awaitPending();
+        producers.clear();
+        try {
+            session.close();
+        } catch (JMSException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Waits for the batches still in flight to be confirmed, then fails the ones that are not.
+     */
+    private void awaitPending() {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(CLOSE_TIMEOUT_SECONDS);
+        for (CompletableFuture<Void> future : pending) {
+            try {
+                future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException e) {
+                // The batch failed on its own
+            } catch (TimeoutException e) {
+                break;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (CompletableFuture<Void> future : pending) {
+            future.completeExceptionally(new JMSException("Message batcher closed before the batch was confirmed"));
+        }
+    }
+
+    private static void shutdown(ExecutorService executor) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Ways of sending a batch.
+     */
+    public enum Mode {
+        /** Send on a transacted session and commit the batch at once */
+        TRANSACTED,
+
+        /** Send each message with ActiveMQ async send and wait for all confirmations */
+        ASYNC
+    }
+
+    /**
+     * A submitted message, created on the batcher's session when its batch is sent.
+     */
+    private interface Outgoing {
+        Message create(Session session) throws JMSException;
+    }
+
+    /**
+     * Messages sealed together, and the future they share.
+     */
+    private static final class Batch {
+        private final List<String> destinations;
+        private final List<Outgoing> messages;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Batch(int capacity) {
+            destinations = new ArrayList<>(capacity);
+            messages = new ArrayList<>(capacity);
+        }
+
+        void add(String destinationName, Outgoing message) {
+            destinations.add(destinationName);
+            messages.add(message);
+        }
+
+        int size() {
+            return messages.size();
+        }
+    }
+}
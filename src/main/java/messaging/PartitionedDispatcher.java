@@ -0,0 +1,242 @@
+/**
+ * PartitionedDispatcher class hands messages from one JMS consumer to a pool of worker threads.
+ * Each message is routed to a partition by its key, such as the sender or conversation id; a partition
+ * is served by one thread in arrival order, so messages of one conversation are handled in order while
+ * different conversations are handled in parallel and a slow one no longer stalls the others.
+ * Every partition has a bounded queue. When it is full the JMS delivery thread waits, so the consumer
+ * stops taking messages and the rest stay with the broker, up to the consumer's prefetch.
+ * Each message is acknowledged by its worker once the listener has handled it, so a crash loses
+ * no message that was only queued; this needs the consumer's session to acknowledge messages
+ * individually, which ActiveMQHandler sets up for any consumer whose listener is a dispatcher.
+ * A message whose listener throws is not acknowledged and is redelivered once the session closes.
+ * Reports the queue depth of every partition for monitoring.
+ */
+package messaging;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jakarta.jms.JMSException;
+import jakarta.jms.Message;
+import jakarta.jms.MessageListener;
+
+public class PartitionedDispatcher implements MessageListener, AutoCloseable {
+    /** Default number of messages a partition queues before delivery waits */
+    public static final int DEFAULT_PARTITION_CAPACITY = 256;
+
+    /** How long close waits for each worker to finish its queued messages */
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    /** Listener every message is finally handed to */
+    private final MessageListener listener;
+
+    /** Extracts the key a message is partitioned by */
+    private final KeyExtractor keyExtractor;
+
+    /** One worker per partition */
+    private final Partition[] partitions;
+
+    /** Flag indicating that no further messages are accepted */
+    private volatile boolean closed;
+
+    /**
+     * Constructs a new PartitionedDispatcher with the default partition capacity and starts its workers.
+     *
+     * @param listener The listener that handles the messages
+     * @param partitionCount The number of worker threads
+     * @param keyExtractor Extracts the key a message is partitioned by
+     */
+    public PartitionedDispatcher(MessageListener listener, int partitionCount, KeyExtractor keyExtractor) {
+        this(listener, partitionCount, DEFAULT_PARTITION_CAPACITY, keyExtractor);
+    }
+
+    /**
+     * Constructs a new PartitionedDispatcher and starts its workers.
+     *
+     * @param listener The listener that handles the messages
+     * @param partitionCount The number of worker threads
+     * @param partitionCapacity The number of messages a partition queues before delivery waits
+     * @param keyExtractor Extracts the key a message is partitioned by
+     */
+    public PartitionedDispatcher(MessageListener listener, int partitionCount, int partitionCapacity,
+            KeyExtractor keyExtractor) {
+        if (partitionCount < 1 || partitionCapacity < 1) {
+            throw new IllegalArgumentException("Partition count and capacity must be at least 1");
+        }
+        this.listener = listener;
+        this.keyExtractor = keyExtractor;
+        this.partitions = new Partition[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new Partition(i, partitionCapacity);
+            partitions[i].thread.start();
+        }
+    }
+
+    /**
+     * Returns a key extractor reading a string property of the message.
+     *
+     * @param propertyName The name of the property holding the key
+     * @return The key extractor
+     */
+    public static KeyExtractor byProperty(String propertyName) {
+        return message -> message.getStringProperty(propertyName);
+    }
+
+    /**
+     * Queues a message on the partition of its key, waiting while that partition is full.
+     * Called on the consumer's delivery thread. Messages without a key go to the first partition.
+     */
+    @Override
+    public void onMessage(Message message) {
+        if (closed) {
+            return;
+        }
+        String key;
+        try {
+            key = keyExtractor.getKey(message);
+        } catch (JMSException e) {
+            e.printStackTrace();
+            key = null;
+        }
+        Partition partition = partitions[partitionOf(key)];
+        try {
+            partition.queue.put(message);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        partition.dispatched.incrementAndGet();
+        partition.maxDepth.accumulateAndGet(partition.queue.size(), Math::max);
+    }
+
+    private int partitionOf(String key) {
+        if (key == null) {
+            return 0;
+        }
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return Math.floorMod(hash, partitions.length);
+    }
+
+    /** @return The number of partitions */
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    /**
+     * Returns the number of messages waiting in every partition.
+     *
+     * @return The current queue depth of each partition, by partition index
+     */
+    public int[] getQueueDepths() {
+        int[] depths = new int[partitions.length];
+        for (int i = 0; i < partitions.length; i++) {
+            depths[i] = partitions[i].queue.size();
+        }
+        return depths;
+    }
+
+    /**
+     * Returns the largest number of messages that waited in every partition.
+     *
+     * @return The highest queue depth of each partition since it started, by partition index
+     */
+    public int[] getMaxQueueDepths() {
+        int[] depths = new int[partitions.length];
+        for (int i = 0; i < partitions.length; i++) {
+            depths[i] = (int) partitions[i].maxDepth.get();
+        }
+        return depths;
+    }
+
+    /**
+     * Returns the number of messages routed to every partition.
+     *
+     * @return The number of messages dispatched to each partition, by partition index
+     */
+    public long[] getDispatchCounts() {
+        long[] counts = new long[partitions.length];
+        for (int i = 0; i < partitions.length; i++) {
+            counts[i] = partitions[i].dispatched.get();
+        }
+        return counts;
+    }
+
+    /**
+     * Stops accepting messages, lets the workers handle what is already queued and stops them.
+     * The consumer should be closed first, so no delivery is waiting for a full partition.
+     * Messages still queued after the timeout stay unacknowledged and are redelivered.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Partition partition : partitions) {
+            partition.thread.interrupt();
+        }
+        for (Partition partition : partitions) {
+            try {
+                partition.thread.join(CLOSE_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Extracts the key that decides which partition handles a message.
+     */
+    public interface KeyExtractor {
+        /**
+         * Returns the key of a message; messages with equal keys are handled in order.
+         *
+         * @param message The message
+         * @return The key, or null if the message has none
+         * @throws JMSException if the message cannot be read
+         */
+        String getKey(Message message) throws JMSException;
+    }
+
+    /**
+     * The queue of one partition and the thread that handles it.
+     */
+    private final class Partition implements Runnable {
+        private final BlockingQueue<Message> queue;
+        private final Thread thread;
+        private final AtomicLong dispatched = new AtomicLong();
+        private final AtomicLong maxDepth = new AtomicLong();
+
+        Partition(int index, int capacity) {
+            queue = new ArrayBlockingQueue<>(capacity);
+            thread = new Thread(this, "message-dispatcher-" + index);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Message message;
+                try {
+                    message = closed ? queue.poll() : queue.poll(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // Closing: handle what is left without waiting for more
+                    message = queue.poll();
+                }
+                if (message == null) {
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+                try {
+                    listener.onMessage(message);
+                    message.acknowledge();
+                } catch (JMSException | RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * PersistenceProfile enum lists the ways the embedded broker can store messages, from fastest to safest.
+ * MEMORY keeps messages in memory only; the KahaDB profiles journal them to disk and differ in when the
+ * journal is forced to the device: after every write batch, once per sync interval, or never (left to
+ * the operating system). Write batches group the messages of concurrent senders, so a forced sync per
+ * batch costs less per message the more clients send at once.
+ * Chosen with the intercom.broker.persistence system property.
+ */
+package messaging;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.store.kahadb.KahaDBPersistenceAdapter;
+
+public enum PersistenceProfile {
+    /** Messages are kept in memory only and lost when the broker stops */
+    MEMORY(false, null),
+
+    /** KahaDB forces the journal to disk after every write batch; nothing acknowledged is lost */
+    DURABLE(true, "always"),
+
+    /** KahaDB forces the journal once per sync interval; a crash loses at most that interval */
+    BATCHED(true, "periodic"),
+
+    /** KahaDB never forces the journal; a crash of the machine, not the broker, can lose messages */
+    UNSYNCED(true, "never");
+
+    /** System property selecting the profile: memory, durable (default), batched or unsynced */
+    public static final String PERSISTENCE_PROPERTY = "intercom.broker.persistence";
+
+    /** How often the BATCHED profile forces the journal to disk */
+    public static final long BATCHED_SYNC_INTERVAL_MILLIS = 1000;
+
+    /** Index updates the batched profiles collect before writing the index */
+    private static final int BATCHED_INDEX_WRITE_BATCH_SIZE = 10000;
+
+    /** Whether messages are stored in KahaDB */
+    private final boolean persistent;
+
+    /** KahaDB journal sync strategy, or null without KahaDB */
+    private final String journalSyncStrategy;
+
+    PersistenceProfile(boolean persistent, String journalSyncStrategy) {
+        this.persistent = persistent;
+        this.journalSyncStrategy = journalSyncStrategy;
+    }
+
+    /** @return true if messages are stored in KahaDB and survive a restart */
+    public boolean isPersistent() {
+        return persistent;
+    }
+
+    /**
+     * Applies the profile to a broker that has not been started yet.
+     *
+     * @param broker The broker to configure
+     * @param dataDirectory The directory the broker keeps its message store in
+     * @throws IOException if the message store cannot be set up
+     */
+    void configure(BrokerService broker, File dataDirectory) throws IOException {
+        broker.setPersistent(persistent);
+        broker.setDataDirectoryFile(dataDirectory);
+        if (!persistent) {
+            return;
+        }
+        KahaDBPersistenceAdapter kahaDB = new KahaDBPersistenceAdapter();
+        kahaDB.setDirectory(new File(dataDirectory, "kahadb"));
+        kahaDB.setJournalDiskSyncStrategy(journalSyncStrategy);
+        if (this != DURABLE) {
+            // The index can be rebuilt from the journal, so it is written lazily as well
+            kahaDB.setJournalDiskSyncInterval(BATCHED_SYNC_INTERVAL_MILLIS);
+            kahaDB.setIndexWriteBatchSize(BATCHED_INDEX_WRITE_BATCH_SIZE);
+            kahaDB.setEnableIndexWriteAsync(true);
+        }
+        broker.setPersistenceAdapter(kahaDB);
+    }
+
+    /**
+     * Reads the profile from the intercom.broker.persistence system property.
+     *
+     * @return The configured profile, DURABLE if none is set
+     */
+    public static PersistenceProfile fromSystemProperties() {
+        String profile = System.getProperty(PERSISTENCE_PROPERTY, "durable");
+        try {
+            return valueOf(profile.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown " + PERSISTENCE_PROPERTY + ": " + profile, e);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * ProducerCache class keeps the Destination and MessageProducer for recently used destinations of one session.
+ * Entries are kept in least-recently-used order and bounded in number; the producer of an evicted
+ * entry is closed, so a long session neither leaks producers nor recreates them for every message.
+ * Each producer is created with the delivery mode the rules give its destination.
+ * Counts hits, misses and evictions for monitoring.
+ */
+package messaging;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jakarta.jms.Destination;
+import jakarta.jms.JMSException;
+import jakarta.jms.MessageProducer;
+import jakarta.jms.Session;
+
+final class ProducerCache {
+    /** Session the destinations and producers belong to */
+    private final Session session;
+
+    /** Delivery mode of each destination's producer */
+    private final DeliveryModes deliveryModes;
+
+    /** Maximum number of cached producers */
+    private final int capacity;
+
+    /** Cached producers by queue:// or topic:// destination name, least recently used first */
+    private final Map<String, MessageProducer> producers;
+
+    /** Number of lookups served from the cache */
+    private long hits;
+
+    /** Number of lookups that had to create a producer */
+    private long misses;
+
+    /** Number of producers closed to make room for others */
+    private long evictions;
+
+    /**
+     * Constructs a new ProducerCache.
+     *
+     * @param session The session used to create destinations and producers
+     * @param capacity The maximum number of cached producers
+     * @param deliveryModes The delivery mode rules applied to new producers
+     */
+    ProducerCache(Session session, int capacity, DeliveryModes deliveryModes) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Producer cache capacity must be at least 1");
+        }
+        this.session = session;
+        this.capacity = capacity;
+        this.deliveryModes = deliveryModes;
+        this.producers = new LinkedHashMap<String, MessageProducer>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, MessageProducer> eldest) {
+                if (size() <= ProducerCache.this.capacity) {
+                    return false;
+                }
+                evictions++;
+                close(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Returns the producer for a queue, creating the queue and producer on first use.
+     *
+     * @param queueName The name of the queue
+     * @return A producer bound to the queue
+     * @throws JMSException if the queue or producer cannot be created
+     */
+    synchronized MessageProducer getProducer(String queueName) throws JMSException {
+        return getProducer("queue://" + queueName, queueName, false);
+    }
+
+    /**
+     * Returns the producer for a topic, creating the topic and producer on first use.
+     *
+     * @param topicName The name of the topic
+     * @return A producer bound to the topic
+     * @throws JMSException if the topic or producer cannot be created
+     */
+    synchronized MessageProducer getTopicProducer(String topicName) throws JMSException {
+        return getProducer("topic://" + topicName, topicName, true);
+    }
+
+    private MessageProducer getProducer(String key, String name, boolean topic) throws JMSException {
+        MessageProducer producer = producers.get(key);
+        if (producer != null) {
+            hits++;
+            return producer;
+        }
+        misses++;
+        Destination destination = topic ? session.createTopic(name) : session.createQueue(name);
+        producer = session.createProducer(destination);
+        producer.setDeliveryMode(deliveryModes.get(name));
+        producers.put(key, producer);
+        return producer;
+    }
+
+    /** @return The number of lookups served from the cache */
+    synchronized long getHits() {
+        return hits;
+    }
+
+    /** @return The number of lookups that had to create a producer */
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    /** @return The number of producers closed to make room for others */
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /** @return The number of currently cached producers */
+    synchronized int size() {
+        return producers.size();
+    }
+
+    /**
+     * Closes every cached producer and empties the cache.
+     */
+    synchronized void clear() {
+        Iterator<MessageProducer> iterator = producers.values().iterator();
+        while (iterator.hasNext()) {
+            close(iterator.next());
+            iterator.remove();
+        }
+    }
+
+    private static void close(MessageProducer producer) {
+        try {
+            producer.close();
+        } catch (JMSException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ * SessionPool class shares one JMS connection between threads without sharing a Session between them.
+ * Sending work is spread over a fixed set of striped sessions, chosen by a hash of the destination name;
+ * each stripe is used by one thread at a time and keeps its own producer cache, so sends to different
+ * destinations proceed in parallel while sends to the same destination stay in order.
+ * Message listeners get a dedicated session each, because the session of an asynchronous consumer
+ * belongs to the thread that delivers its messages.
+ */
+package messaging;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import jakarta.jms.Connection;
+import jakarta.jms.JMSException;
+import jakarta.jms.Session;
+
+final class SessionPool {
+    /** Connection all sessions are created on */
+    private final Connection connection;
+
+    /** Sending sessions; a destination always maps to the same stripe */
+    private final Stripe[] stripes;
+
+    /** Sessions created for listeners, closed with the pool */
+    private final List<Session> consumerSessions = new CopyOnWriteArrayList<>();
+
+    /**
+     * Creates the sending sessions of a pool.
+     *
+     * @param connection The connection to create sessions on
+     * @param stripeCount The number of sending sessions
+     * @param producerCacheSize The maximum number of cached producers in each sending session
+     * @param deliveryModes The delivery mode rules applied to new producers
+     * @throws JMSException if a session cannot be created
+     */
+    SessionPool(Connection connection, int stripeCount, int producerCacheSize, DeliveryModes deliveryModes)
+            throws JMSException {
+        if (stripeCount < 1) {
+            throw new IllegalArgumentException("Session pool needs at least one session");
+        }
+        this.connection = connection;
+        this.stripes = new Stripe[stripeCount];
+        try {
+            for (int i = 0; i < stripeCount; i++) {
+                Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+                stripes[i] = new Stripe(session, new ProducerCache(session, producerCacheSize, deliveryModes));
+            }
+        } catch (JMSException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs work on the sending session that owns a destination, holding that session for the duration.
+     *
+     * @param destinationName The destination the work sends to; selects the session
+     * @param work The work to run
+     * @param <T> The type of the work's result
+     * @return The result of the work
+     * @throws JMSException if the work fails
+     */
+    <T> T execute(String destinationName, SessionWork<T> work) throws JMSException {
+        Stripe stripe = stripeFor(destinationName);
+        synchronized (stripe) {
+            return work.run(stripe.session, stripe.producers);
+        }
+    }
+
+    private Stripe stripeFor(String destinationName) {
+        int hash = destinationName.hashCode();
+        // Spread the high bits so names differing only in their last characters still spread out
+        hash ^= hash >>> 16;
+        return stripes[Math.floorMod(hash, stripes.length)];
+    }
+
+    /**
+     * Creates a session reserved for one consumer.
+     *
+     * @return A new session, closed when the pool is closed
+     * @throws JMSException if the session cannot be created
+     */
+    Session createConsumerSession() throws JMSException {
+        return createConsumerSession(Session.AUTO_ACKNOWLEDGE);
+    }
+
+    /**
+     * Creates a non-transacted session reserved for one consumer, with the given acknowledge mode.
+     *
+     * @param acknowledgeMode The acknowledge mode, such as Session.CLIENT_ACKNOWLEDGE
+     * @return A new session, closed when the pool is closed
+     * @throws JMSException if the session cannot be created
+     */
+    Session createConsumerSession(int acknowledgeMode) throws JMSException {
+        Session session = connection.createSession(false, acknowledgeMode);
+        consumerSessions.add(session);
+        return session;
+    }
+
+    /** @return The total number of producer cache hits over all sending sessions */
+    long getProducerCacheHits() {
+        long hits = 0;
+        for (Stripe stripe : stripes) {
+            hits += stripe == null ? 0 : stripe.producers.getHits();
+        }
+        return hits;
+    }
+
+    /** @return The total number of producer cache misses over all sending sessions */
+    long getProducerCacheMisses() {
+        long misses = 0;
+        for (Stripe stripe : stripes) {
+            misses += stripe == null ? 0 : stripe.producers.getMisses();
+        }
+        return misses;
+    }
+
+    /** @return The total number of producer cache evictions over all sending sessions */
+    long getProducerCacheEvictions() {
+        long evictions = 0;
+        for (Stripe stripe : stripes) {
+            evictions += stripe == null ? 0 : stripe.producers.getEvictions();
+        }
+        return evictions;
+    }
+
+    /**
+     * Closes the cached producers and every session of the pool.
+     * Errors are reported and do not stop the remaining sessions from closing.
+     */
+    void close() {
+        for (Stripe stripe : stripes) {
+            if (stripe != null) {
+                synchronized (stripe) {
+                    stripe.producers.clear();
+                    closeSession(stripe.session);
+                }
+            }
+        }
+        for (Session session : consumerSessions) {
+            closeSession(session);
+        }
+        consumerSessions.clear();
+    }
+
+    private static void closeSession(Session session) {
+        try {
+            session.close();
+        } catch (JMSException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Work run while holding one sending session.
+     *
+     * @param <T> The type of the work's result
+     */
+    interface SessionWork<T> {
+        /**
+         * Runs the work. The session and producers must not be used after returning.
+         *
+         * @param session The sending session
+         * @param producers The producer cache of that session
+         * @return The result of the work
+         * @throws JMSException if the work fails
+         */
+        T run(Session session, ProducerCache producers) throws JMSException;
+    }
+
+    /**
+     * One sending session and its producers; the stripe's monitor guards both.
+     */
+    private static final class Stripe {
+        private final Session session;
+        private final ProducerCache producers;
+
+        Stripe(Session session, ProducerCache producers) {
+            this.session = session;
+            this.producers = producers;
+        }
+    }
+}
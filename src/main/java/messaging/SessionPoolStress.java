@@ -0,0 +1,194 @@
+/**
+ * SessionPoolStress class is a command-line stress test of the SessionPool under concurrent senders.
+ * It starts the embedded broker in memory and has a number of threads send numbered messages through one
+ * pool to destinations spread over every stripe, with producer caches small enough that producers are
+ * evicted and recreated while other threads send. A consumer on every destination records what arrives.
+ * It checks that no send or the connection reports a JMS exception, that every stripe was used,
+ * that every message arrives exactly once, and that each sender's messages to a destination arrive in order.
+ * It exits with status 1 if a check fails.
+ *
+ * Usage: java messaging.SessionPoolStress [senders] [messages per sender] [destinations] [stripes]
+ */
+package messaging;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+
+import jakarta.jms.Connection;
+import jakarta.jms.JMSException;
+import jakarta.jms.MessageConsumer;
+import jakarta.jms.Session;
+import jakarta.jms.TextMessage;
+
+public final class SessionPoolStress {
+    /** Prefix of the destinations the senders send to */
+    private static final String QUEUE_PREFIX = "stress.pool.";
+
+    /** Message property holding the index of the sending thread */
+    private static final String SENDER_PROPERTY = "stressSender";
+
+    /** Message property holding the number of the message within its sender */
+    private static final String SEQUENCE_PROPERTY = "stressSequence";
+
+    /** Producers cached per stripe; fewer than the destinations of a stripe, so producers are evicted */
+    private static final int PRODUCERS_PER_STRIPE = 2;
+
+    /** Longest time to wait for every message to arrive */
+    private static final long RECEIVE_TIMEOUT_MILLIS = 60000;
+
+    /** Failed checks */
+    private static final AtomicLong FAILURES = new AtomicLong();
+
+    private SessionPoolStress() {
+    }
+
+    /**
+     * Runs the stress test.
+     *
+     * @param args Optional sender threads, messages per sender, destinations and stripes
+     * @throws Exception if the broker cannot be started or connected to
+     */
+    public static void main(String[] args) throws Exception {
+        int senders = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int destinations = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+        int stripeCount = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+
+        Path dataDirectory = Files.createTempDirectory("poolstress");
+        EmbeddedBroker broker = EmbeddedBroker.getInstance();
+        broker.setPersistent(false);
+        broker.setDataDirectory(dataDirectory);
+        broker.setConnectorUrl(null);
+        broker.start();
+        try {
+            run(senders, messages, destinations, stripeCount);
+        } finally {
+            broker.stop();
+            try (Stream<Path> files = Files.walk(dataDirectory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+        System.out.println(FAILURES.get() == 0 ? "All checks passed" : FAILURES.get() + " checks failed");
+        System.exit(FAILURES.get() == 0 ? 0 : 1);
+    }
+
+    private static void run(int senders, int messages, int destinations, int stripeCount) throws Exception {
+        Connection connection = new ActiveMQConnectionFactory(EmbeddedBroker.getVmUrl()).createConnection();
+        connection.setExceptionListener(e -> check(false, "Connection failed: " + e));
+        connection.start();
+        SessionPool pool = new SessionPool(connection, stripeCount, PRODUCERS_PER_STRIPE, new DeliveryModes());
+        try {
+            // Deliveries per message, and the last sequence seen per destination and sender
+            AtomicIntegerArray deliveries = new AtomicIntegerArray(senders * messages);
+            int[][] lastSequence = new int[destinations][senders];
+            AtomicLong received = new AtomicLong();
+            CountDownLatch allReceived = new CountDownLatch(senders * messages);
+            for (int d = 0; d < destinations; d++) {
+                int destination = d;
+                Arrays.fill(lastSequence[destination], -1);
+                Session session = pool.createConsumerSession();
+                MessageConsumer consumer = session.createConsumer(session.createQueue(QUEUE_PREFIX + destination));
+                // Each consumer's listener runs on one thread at a time, so its row needs no lock
+                consumer.setMessageListener(message -> {
+                    try {
+                        int sender = message.getIntProperty(SENDER_PROPERTY);
+                        int sequence = message.getIntProperty(SEQUENCE_PROPERTY);
+                        check(deliveries.incrementAndGet(sender * messages + sequence) == 1,
+                                "Duplicate message " + sequence + " of sender " + sender);
+                        check(sequence > lastSequence[destination][sender], "Message " + sequence + " of sender "
+                                + sender + " after " + lastSequence[destination][sender] + " on " + destination);
+                        lastSequence[destination][sender] = sequence;
+                        received.incrementAndGet();
+                        allReceived.countDown();
+                    } catch (JMSException e) {
+                        e.printStackTrace();
+                        check(false, "Cannot read a received message");
+                    }
+                });
+            }
+
+            Set<Session> stripesUsed = ConcurrentHashMap.newKeySet();
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+            for (int s = 0; s < senders; s++) {
+                int sender = s;
+                threads.add(new Thread(() -> {
+                    await(start);
+                    for (int sequence = 0; sequence < messages; sequence++) {
+                        String queueName = QUEUE_PREFIX + Math.floorMod(sender * 7 + sequence, destinations);
+                        int number = sequence;
+                        try {
+                            pool.execute(queueName, (session, producers) -> {
+                                stripesUsed.add(session);
+                                TextMessage message = session.createTextMessage("message " + number);
+                                message.setIntProperty(SENDER_PROPERTY, sender);
+                                message.setIntProperty(SEQUENCE_PROPERTY, number);
+                                producers.getProducer(queueName).send(message);
+                                return null;
+                            });
+                        } catch (JMSException | RuntimeException e) {
+                            e.printStackTrace();
+                            check(false, "Send " + sequence + " of sender " + sender + " failed: " + e);
+                        }
+                    }
+                }, "sender-" + s));
+            }
+
+            long begin = System.nanoTime();
+            threads.forEach(Thread::start);
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            double sendSeconds = (System.nanoTime() - begin) / 1e9;
+            allReceived.await(RECEIVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            double seconds = (System.nanoTime() - begin) / 1e9;
+
+            int lost = 0;
+            for (int i = 0; i < deliveries.length(); i++) {
+                if (deliveries.get(i) == 0) {
+                    lost++;
+                }
+            }
+            check(lost == 0, lost + " messages lost");
+            check(received.get() == senders * (long) messages,
+                    received.get() + " deliveries for " + senders * (long) messages + " messages");
+            check(stripesUsed.size() == stripeCount, "Only " + stripesUsed.size() + " of " + stripeCount
+                    + " stripes used");
+            System.out.printf("%d senders, %d stripes, %d destinations: %d messages sent in %.2f s, "
+                    + "received in %.2f s; producer cache %d hits, %d misses, %d evictions%n", senders, stripeCount,
+                    destinations, senders * messages, sendSeconds, seconds, pool.getProducerCacheHits(),
+                    pool.getProducerCacheMisses(), pool.getProducerCacheEvictions());
+        } finally {
+            pool.close();
+            connection.close();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void check(boolean condition, String failure) {
+        if (!condition && FAILURES.incrementAndGet() <= 10) {
+            System.err.println(failure);
+        }
+    }
+}
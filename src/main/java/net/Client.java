@@ -1,45 +1,206 @@
 /**
  * Client class provides functionality for sending messages and files to a server.
- * Supports both object serialization for messages and binary transfer for files.
+ * Messages use the compact binary frame protocol by default, with Java serialization
+ * kept for older servers; files are sent in checksummed chunks on a dedicated connection and
+ * resume from the server's committed offset after a dropped connection.
  * Includes message classes for structured communication.
  */
 package net;
 
-import java.io.DataOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.ObjectOutputStream;
-import java.io.OutputStream;
 import java.io.Serializable;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
 
-public class Client {
+public class Client implements Closeable {
+    /** Default number of persistent connections kept to the server */
+    public static final int DEFAULT_POOL_SIZE = 4;
+    
+    /** Default number of unacknowledged messages allowed per connection */
+    public static final int DEFAULT_WINDOW_SIZE = 64;
+    
+    /** Default size of the chunks a file is sent in */
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    
+    /** Number of times a send is retried on a fresh connection after a write failure */
+    private static final int SEND_RETRIES = 1;
+    
+    /** Number of times a file transfer reconnects and resumes after a connection failure */
+    private static final int TRANSFER_RETRIES = 5;
+    
+    /** Pause before the first resume attempt; doubled for each further attempt */
+    private static final long TRANSFER_RETRY_DELAY_MILLIS = 100;
+    
     /** Host address of the server to connect to */
     private final String host;
     
     /** Port number of the server to connect to */
     private final int port;
+    
+    /** Whether messages use the binary frame protocol instead of Java serialization */
+    private final boolean framed;
+    
+    /** Persistent connections used for sending binary frames */
+    private final ConnectionPool pool;
+    
+    /** Source of ids for acknowledged messages; 0 is reserved for unacknowledged ones */
+    private final AtomicLong nextMessageId = new AtomicLong(1);
+    
+    /** Executor for connection reader tasks */
+    private final ExecutorService executor;
 
     /**
-     * Constructs a new Client instance.
+     * Constructs a new Client instance that uses the binary frame protocol.
      * 
      * @param host The host address of the server
      * @param port The port number of the server
      */
     public Client(String host, int port) {
+        this(host, port, true);
+    }
+
+    /**
+     * Constructs a new Client instance.
+     * 
+     * @param host The host address of the server
+     * @param port The port number of the server
+     * @param framed true to use the binary frame protocol, false to send a Java serialization stream
+     */
+    public Client(String host, int port, boolean framed) {
+        this(host, port, framed, ExecutionMode.CACHED_POOL);
+    }
+
+    /**
+     * Constructs a new Client instance whose connection reader tasks run in the given execution mode.
+     * 
+     * @param host The host address of the server
+     * @param port The port number of the server
+     * @param framed true to use the binary frame protocol, false to send a Java serialization stream
+     * @param executionMode How connection reader tasks are run
+     */
+    public Client(String host, int port, boolean framed, ExecutionMode executionMode) {
+        this(host, port, framed, executionMode, DEFAULT_POOL_SIZE, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Constructs a new Client instance with explicit connection pool and send window sizes.
+     * 
+     * @param host The host address of the server
+     * @param port The port number of the server
+     * @param framed true to use the binary frame protocol, false to send a Java serialization stream
+     * @param executionMode How connection reader tasks are run
+     * @param poolSize The maximum number of persistent connections kept to the server
+     * @param windowSize The maximum number of unacknowledged messages per connection
+     */
+    public Client(String host, int port, boolean framed, ExecutionMode executionMode, int poolSize, int windowSize) {
         this.host = host;
         this.port = port;
+        this.framed = framed;
+        this.executor = executionMode.newExecutor();
+        this.pool = new ConnectionPool(host, port, poolSize, windowSize, executor);
+    }
+
+    /**
+     * Sends a message and returns before the server has processed it.
+     * Sends are pipelined over the pooled connections; the caller only blocks while
+     * the connection's window of unacknowledged messages is full.
+     * The future is completed on the connection's reader thread, so dependent actions
+     * that block should use an async stage with their own executor.
+     * 
+     * @param message The message object to send
+     * @return A future completed with the acknowledgement once the server has processed the message,
+     *         or failed if the connection breaks first; requires the binary frame protocol
+     */
+    public CompletableFuture<Acknowledgement> sendMessageAsync(Object message) {
+        if (!framed) {
+            return CompletableFuture.failedFuture(
+                    new UnsupportedOperationException("Acknowledged sends require the binary frame protocol"));
+        }
+        long messageId = nextMessageId.getAndIncrement();
+        try {
+            ByteBuffer frame = WireCodec.encode(message, messageId);
+            for (int attempt = 0; ; attempt++) {
+                ConnectionPool.PooledConnection connection = pool.borrow();
+                try {
+                    CompletableFuture<Acknowledgement> acknowledgement = connection.send(frame, messageId);
+                    pool.release(connection);
+                    return acknowledgement;
+                } catch (IOException e) {
+                    pool.discard(connection);
+                    if (attempt >= SEND_RETRIES) {
+                        throw e;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Closes the persistent connections and releases the executor used for their reader tasks.
+     * Acknowledgements still outstanding fail with an I/O error.
+     */
+    @Override
+    public void close() {
+        pool.close();
+        executor.shutdown();
     }
 
     /**
      * Sends a serializable object message to the server.
-     * Creates a new connection for each message.
+     * Binary frames go over a pooled persistent connection, reconnecting if the connection has failed;
+     * the legacy serialization stream still uses a new connection for each message.
      * 
      * @param message The message object to send
      * @throws IOException if there's an error connecting to the server or sending the message
      */
     public void sendMessage(Object message) throws IOException {
+        if (!framed) {
+            sendSerialized(message);
+            return;
+        }
+        ByteBuffer frame = WireCodec.encode(message);
+        for (int attempt = 0; ; attempt++) {
+            ConnectionPool.PooledConnection connection = pool.borrow();
+            try {
+                connection.write(frame);
+                pool.release(connection);
+                return;
+            } catch (IOException e) {
+                pool.discard(connection);
+                if (attempt >= SEND_RETRIES) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a message as a Java serialization stream over its own connection, as older clients did.
+     * 
+     * @param message The message object to send
+     * @throws IOException if there's an error connecting to the server or sending the message
+     */
+    private void sendSerialized(Object message) throws IOException {
         try (Socket socket = new Socket(host, port);
              ObjectOutputStream output = new ObjectOutputStream(socket.getOutputStream())) {
             output.writeObject(message);
@@ -48,32 +209,295 @@ public class Client {
     }
 
     /**
-     * Sends a file to the server.
-     * First sends the file size, then streams the file data.
-     * Uses a buffer for efficient transfer.
+     * Sends a file to the server without naming a sender.
      * 
      * @param file The file to send
      * @throws IOException if there's an error connecting to the server or sending the file
      */
     public void sendFile(File file) throws IOException {
-        try (Socket socket = new Socket(host, port);
-             OutputStream output = socket.getOutputStream();
-             FileInputStream fileInput = new FileInputStream(file)) {
-            
-            // Send file size first
-            DataOutputStream dataOutput = new DataOutputStream(output);
-            dataOutput.writeLong(file.length());
-            
-            // Send file data
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = fileInput.read(buffer)) != -1) {
-                output.write(buffer, 0, bytesRead);
+        sendFile(file, "");
+    }
+
+    /**
+     * Sends a file to the server in chunks of {@link #DEFAULT_CHUNK_SIZE} bytes.
+     * 
+     * @param file The file to send
+     * @param sender The username of the sender
+     * @throws IOException if there's an error connecting to the server or sending the file
+     */
+    public void sendFile(File file, String sender) throws IOException {
+        sendFile(file, sender, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Sends a file to the server over its own connection as a resumable chunked transfer.
+     * The server first reports how much of this file it already holds from an earlier attempt;
+     * the rest is sent in fixed-size chunks, each carrying a CRC32C the server verifies before
+     * committing it. If the connection fails, the client reconnects and continues from the
+     * server's committed offset, up to a fixed number of attempts.
+     * Returns once the server has stored the whole file. Files always use the binary frame protocol.
+     * 
+     * @param file The file to send
+     * @param sender The username of the sender
+     * @param chunkSize The number of file bytes per chunk
+     * @throws IOException if the file cannot be read or the transfer keeps failing
+     */
+    public void sendFile(File file, String sender, int chunkSize) throws IOException {
+        sendFile(file, sender, chunkSize, 1);
+    }
+
+    /**
+     * Sends a file as a resumable chunked transfer split over several concurrent connections,
+     * to fill links that one TCP stream cannot. The file is divided into equal byte ranges,
+     * one per connection, which the server writes straight to their offsets in a preallocated file.
+     * Each range is resumed on its own after a connection failure.
+     * The stream count is reduced for files too small to give every stream at least one chunk.
+     * 
+     * @param file The file to send
+     * @param sender The username of the sender
+     * @param chunkSize The number of file bytes per chunk
+     * @param streams The number of concurrent connections, at most 64
+     * @throws IOException if the file cannot be read or any range keeps failing
+     */
+    public void sendFile(File file, String sender, int chunkSize, int streams) throws IOException {
+        if (chunkSize < 1 || chunkSize > WireCodec.MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be between 1 and " + WireCodec.MAX_CHUNK_SIZE);
+        }
+        if (streams < 1 || streams > WireCodec.MAX_STREAMS) {
+            throw new IllegalArgumentException("Stream count must be between 1 and " + WireCodec.MAX_STREAMS);
+        }
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = source.size();
+            int streamCount = (int) Math.max(1, Math.min(streams, size / chunkSize));
+            long transferId = transferId(file, size);
+            FileMessage message = new FileMessage(sender, file.getName(), size);
+
+            List<CompletableFuture<Void>> others = new ArrayList<>(streamCount - 1);
+            for (int stream = 1; stream < streamCount; stream++) {
+                int index = stream;
+                others.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        sendRange(source, transferId, message, chunkSize, streamCount, index);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, executor));
             }
-            output.flush();
+
+            IOException failure = null;
+            try {
+                sendRange(source, transferId, message, chunkSize, streamCount, 0);
+            } catch (IOException e) {
+                failure = e;
+            }
+            for (CompletableFuture<Void> other : others) {
+                try {
+                    other.join();
+                } catch (CompletionException e) {
+                    IOException cause = e.getCause() instanceof IOException
+                            ? (IOException) e.getCause() : new IOException(e.getCause());
+                    if (failure == null) {
+                        failure = cause;
+                    } else {
+                        failure.addSuppressed(cause);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Sends one range of a chunked transfer, reconnecting and resuming it after failures.
+     */
+    private void sendRange(FileChannel source, long transferId, FileMessage message, int chunkSize,
+            int streams, int stream) throws IOException {
+        long rangeLength = WireCodec.rangeStart(message.getFileSize(), streams, stream + 1)
+                - WireCodec.rangeStart(message.getFileSize(), streams, stream);
+        ByteBuffer chunk = ByteBuffer.allocateDirect((int) Math.min(chunkSize, Math.max(rangeLength, 1)));
+        for (int attempt = 0; ; attempt++) {
+            try {
+                transferChunks(source, transferId, message, streams, stream, chunk);
+                return;
+            } catch (IOException e) {
+                if (attempt == TRANSFER_RETRIES) {
+                    throw e;
+                }
+                pauseBeforeResume(attempt, e);
+            }
+        }
+    }
+
+    /**
+     * Runs one connection's worth of a chunked transfer: begins or resumes one range, sends its
+     * remaining chunks and waits for the server to report the range committed.
+     */
+    private void transferChunks(FileChannel source, long transferId, FileMessage message, int streams, int stream,
+            ByteBuffer chunk) throws IOException {
+        long end = WireCodec.rangeStart(message.getFileSize(), streams, stream + 1);
+        CRC32C checksum = new CRC32C();
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port))) {
+            channel.socket().setTcpNoDelay(true);
+            ByteBuffer version = ByteBuffer.wrap(new byte[] { WireCodec.PROTOCOL_VERSION });
+            ByteBuffer begin = WireCodec.encodeTransferBegin(transferId, streams, stream, message);
+            while (begin.hasRemaining()) {
+                channel.write(new ByteBuffer[] { version, begin });
+            }
+            long offset = WireCodec.decodeTransferOffset(readFrame(channel), transferId);
+            if (offset == end) {
+                return;
+            }
+
+            while (offset < end) {
+                chunk.clear().limit((int) Math.min(chunk.capacity(), end - offset));
+                while (chunk.hasRemaining()) {
+                    if (source.read(chunk, offset + chunk.position()) < 0) {
+                        throw new EOFException("File shrank during transfer");
+                    }
+                }
+                chunk.flip();
+                checksum.reset();
+                checksum.update(chunk.duplicate());
+                ByteBuffer header = WireCodec.encodeChunkHeader(
+                        transferId, offset, (int) checksum.getValue(), chunk.remaining());
+                offset += chunk.remaining();
+                while (chunk.hasRemaining()) {
+                    channel.write(new ByteBuffer[] { header, chunk });
+                }
+            }
+            long committed = WireCodec.decodeTransferOffset(readFrame(channel), transferId);
+            if (committed != end) {
+                throw new IOException("Server committed range " + stream + " up to " + committed + " of " + end);
+            }
+        }
+    }
+
+    /**
+     * Derives a transfer id that stays the same for the same file contents across reconnects
+     * and client restarts, so the server can match a resume to its earlier progress.
+     * The server keys transfers by sender and id, and refuses a begin that names a different file.
+     */
+    private static long transferId(File file, long size) {
+        String key = file.getAbsolutePath() + '|' + size + '|' + file.lastModified();
+        return UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)).getMostSignificantBits();
+    }
+
+    private static void pauseBeforeResume(int attempt, IOException failure) throws IOException {
+        try {
+            Thread.sleep(TRANSFER_RETRY_DELAY_MILLIS << attempt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException interrupted = new InterruptedIOException("Interrupted while resuming transfer");
+            interrupted.addSuppressed(failure);
+            throw interrupted;
+        }
+    }
+
+    /**
+     * Sends a file as one unchunked stream, either with transferTo or by copying it through a heap buffer.
+     * The transfer cannot be resumed; this path exists for benchmarking zero-copy transfer
+     * against the copying and chunked paths.
+     * 
+     * @param file The file to send
+     * @param sender The username of the sender
+     * @param zeroCopy true to use FileChannel.transferTo, false to copy through an 8 KB buffer
+     * @throws IOException if there's an error connecting to the server or sending the file
+     */
+    void streamFile(File file, String sender, boolean zeroCopy) throws IOException {
+        long messageId = nextMessageId.getAndIncrement();
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port))) {
+            long size = source.size();
+            FileMessage message = new FileMessage(sender, file.getName(), size);
+            ByteBuffer version = ByteBuffer.wrap(new byte[] { WireCodec.PROTOCOL_VERSION });
+            ByteBuffer header = WireCodec.encodeFileHeader(message, messageId);
+            while (header.hasRemaining()) {
+                channel.write(new ByteBuffer[] { version, header });
+            }
+
+            if (zeroCopy) {
+                long position = 0;
+                while (position < size) {
+                    position += source.transferTo(position, size - position, channel);
+                }
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocate(8192);
+                while (source.read(buffer) != -1) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    buffer.clear();
+                }
+            }
+            awaitAcknowledgement(channel, messageId);
         }
     }
 
+    /**
+     * Blocks until the server acknowledges the given message on a dedicated connection.
+     * 
+     * @param channel The blocking channel the message was sent on
+     * @param messageId The id of the message
+     * @throws IOException if the connection ends first or the acknowledgement does not match
+     */
+    private static void awaitAcknowledgement(SocketChannel channel, long messageId) throws IOException {
+        long acknowledged = WireCodec.decodeAck(readFrame(channel));
+        if (acknowledged != messageId) {
+            throw new IOException("Unexpected acknowledgement " + acknowledged + " for message " + messageId);
+        }
+    }
+
+    /**
+     * Reads one frame sent by the server on a dedicated connection.
+     * 
+     * @param channel The blocking channel to read from
+     * @return The frame payload, without its length prefix
+     * @throws IOException if the connection ends first or the length is invalid
+     */
+    private static ByteBuffer readFrame(SocketChannel channel) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(WireCodec.LENGTH_PREFIX_SIZE);
+        readFully(channel, length);
+        int payloadLength = length.flip().getInt();
+        WireCodec.checkLength(payloadLength);
+        ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+        readFully(channel, payload);
+        return payload.flip();
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed by server");
+            }
+        }
+    }
+
+    /**
+     * Acknowledgement of a message processed by the server.
+     * Carries the round-trip time from writing the message to receiving its acknowledgement.
+     */
+    public static final class Acknowledgement {
+        /** Id of the acknowledged message, unique within this client */
+        private final long messageId;
+        
+        /** Time between writing the message and reading its acknowledgement */
+        private final long roundTripNanos;
+
+        Acknowledgement(long messageId, long roundTripNanos) {
+            this.messageId = messageId;
+            this.roundTripNanos = roundTripNanos;
+        }
+
+        /** @return The id of the acknowledged message */
+        public long getMessageId() { return messageId; }
+        
+        /** @return The round-trip time in nanoseconds */
+        public long getRoundTripNanos() { return roundTripNanos; }
+    }
+
     /**
      * Represents a text message in the chat system.
      * Contains sender information, message content, and timestamp.
@@ -98,9 +522,20 @@ public class Client {
          * @param content The message content
          */
         public Message(String sender, String content) {
+            this(sender, content, System.currentTimeMillis());
+        }
+
+        /**
+         * Constructs a Message with an existing timestamp, as decoded from the wire.
+         * 
+         * @param sender The username of the sender
+         * @param content The message content
+         * @param timestamp The creation time in milliseconds since the epoch
+         */
+        Message(String sender, String content, long timestamp) {
             this.sender = sender;
             this.content = content;
-            this.timestamp = System.currentTimeMillis();
+            this.timestamp = timestamp;
         }
 
         /** @return The username of the message sender */
@@ -141,10 +576,22 @@ public class Client {
          * @param fileSize The size of the file in bytes
          */
         public FileMessage(String sender, String fileName, long fileSize) {
+            this(sender, fileName, fileSize, System.currentTimeMillis());
+        }
+
+        /**
+         * Constructs a FileMessage with an existing timestamp, as decoded from the wire.
+         * 
+         * @param sender The username of the sender
+         * @param fileName The name of the file
+         * @param fileSize The size of the file in bytes
+         * @param timestamp The creation time in milliseconds since the epoch
+         */
+        FileMessage(String sender, String fileName, long fileSize, long timestamp) {
             this.sender = sender;
             this.fileName = fileName;
             this.fileSize = fileSize;
-            this.timestamp = System.currentTimeMillis();
+            this.timestamp = timestamp;
         }
 
         /** @return The username of the file sender */
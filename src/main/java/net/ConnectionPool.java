@@ -0,0 +1,286 @@
+/**
+ * ConnectionPool class keeps a small set of long-lived connections to one server.
+ * Senders borrow a connection for the duration of one write and return it afterwards,
+ * so concurrent senders use separate streams instead of queuing on a single one.
+ * Connections are opened lazily, speak the binary frame protocol and are replaced when a write fails.
+ * Each connection has a reader task that completes acknowledged sends and notices when the
+ * server closes the connection, so a stale connection is dropped before a write could silently
+ * vanish into it. Acknowledged sends are pipelined up to a bounded window per connection.
+ */
+package net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+final class ConnectionPool implements Closeable {
+    /** Host address of the server */
+    private final String host;
+
+    /** Port number of the server */
+    private final int port;
+
+    /** Executor running the reader task of each connection */
+    private final Executor readerExecutor;
+
+    /** Maximum number of unacknowledged messages per connection */
+    private final int windowSize;
+
+    /** Permits bounding the number of open connections */
+    private final Semaphore permits;
+
+    /** Connections that are open and not currently borrowed */
+    private final BlockingQueue<PooledConnection> idle = new LinkedBlockingQueue<>();
+
+    /** Flag indicating if the pool has been closed */
+    private volatile boolean closed;
+
+    /**
+     * Constructs a new ConnectionPool.
+     *
+     * @param host The host address of the server
+     * @param port The port number of the server
+     * @param size The maximum number of open connections
+     * @param windowSize The maximum number of unacknowledged messages per connection
+     * @param readerExecutor Executor running the reader task of each connection
+     */
+    ConnectionPool(String host, int port, int size, int windowSize, Executor readerExecutor) {
+        if (size < 1 || windowSize < 1) {
+            throw new IllegalArgumentException("Pool and window size must be at least 1");
+        }
+        this.host = host;
+        this.port = port;
+        this.readerExecutor = readerExecutor;
+        this.windowSize = windowSize;
+        this.permits = new Semaphore(size);
+    }
+
+    /**
+     * Borrows a connection, opening a new one if none is idle and the pool is not full.
+     * Blocks while all connections are borrowed.
+     *
+     * @return A connection that must be passed back to {@link #release} or {@link #discard}
+     * @throws IOException if the pool is closed, the wait is interrupted or a connection cannot be opened
+     */
+    PooledConnection borrow() throws IOException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection");
+        }
+        if (closed) {
+            permits.release();
+            throw new IOException("Connection pool is closed");
+        }
+
+        PooledConnection connection;
+        while ((connection = idle.poll()) != null) {
+            if (connection.isOpen()) {
+                return connection;
+            }
+            connection.close();
+        }
+        try {
+            return new PooledConnection(host, port, windowSize, readerExecutor);
+        } catch (IOException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a healthy connection to the pool.
+     *
+     * @param connection The borrowed connection
+     */
+    void release(PooledConnection connection) {
+        if (closed) {
+            connection.close();
+        } else {
+            idle.add(connection);
+        }
+        permits.release();
+    }
+
+    /**
+     * Closes a connection that failed and frees its slot for a fresh one.
+     *
+     * @param connection The borrowed connection
+     */
+    void discard(PooledConnection connection) {
+        connection.close();
+        permits.release();
+    }
+
+    /**
+     * Closes all idle connections; borrowed ones are closed when they are returned.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        PooledConnection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * A single persistent connection, the stream used to write to it and its unacknowledged sends.
+     */
+    static final class PooledConnection {
+        private final Socket socket;
+        private final OutputStream output;
+
+        /** Sends waiting for their acknowledgement, keyed by message id */
+        private final Map<Long, PendingSend> pending = new ConcurrentHashMap<>();
+
+        /** Permits bounding the number of unacknowledged sends */
+        private final Semaphore window;
+
+        /** Cleared by the reader task once the server has closed the connection */
+        private volatile boolean open = true;
+
+        PooledConnection(String host, int port, int windowSize, Executor readerExecutor) throws IOException {
+            window = new Semaphore(windowSize);
+            socket = new Socket(host, port);
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setKeepAlive(true);
+                output = new BufferedOutputStream(socket.getOutputStream());
+                output.write(WireCodec.PROTOCOL_VERSION);
+                readerExecutor.execute(this::read);
+            } catch (IOException | RuntimeException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Reads acknowledgements until the server closes the connection,
+         * then fails every send still waiting for one.
+         */
+        private void read() {
+            IOException failure = null;
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+                byte[] payload = new byte[16];
+                while (true) {
+                    int length = input.readInt();
+                    WireCodec.checkLength(length);
+                    if (length > payload.length) {
+                        payload = new byte[length];
+                    }
+                    input.readFully(payload, 0, length);
+                    acknowledge(WireCodec.decodeAck(ByteBuffer.wrap(payload, 0, length)));
+                }
+            } catch (EOFException e) {
+                failure = new EOFException("Connection closed before acknowledgement");
+            } catch (IOException e) {
+                // Closed locally, reset by the server or a protocol error
+                failure = e;
+            } finally {
+                open = false;
+                close();
+                failPending(failure);
+            }
+        }
+
+        /** @return true until the server or this client has closed the connection */
+        boolean isOpen() {
+            return open;
+        }
+
+        /**
+         * Writes one encoded frame and flushes it to the socket.
+         *
+         * @param frame A heap buffer holding a complete frame; its position is not changed
+         * @throws IOException if the connection is broken
+         */
+        void write(ByteBuffer frame) throws IOException {
+            output.write(frame.array(), frame.arrayOffset(), frame.remaining());
+            output.flush();
+        }
+
+        /**
+         * Writes a frame that requests an acknowledgement, waiting first for room in the window.
+         *
+         * @param frame A heap buffer holding a complete frame encoded with the given message id
+         * @param messageId The id the server will acknowledge
+         * @return A future completed by the reader task when the acknowledgement arrives
+         * @throws IOException if the connection is broken or the wait is interrupted
+         */
+        CompletableFuture<Client.Acknowledgement> send(ByteBuffer frame, long messageId) throws IOException {
+            try {
+                window.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the send window");
+            }
+
+            PendingSend send = new PendingSend();
+            pending.put(messageId, send);
+            try {
+                write(frame);
+            } catch (IOException e) {
+                if (pending.remove(messageId) != null) {
+                    window.release();
+                }
+                throw e;
+            }
+            if (!open) {
+                // The reader may have failed the pending sends before this one was registered
+                failPending(new EOFException("Connection closed before acknowledgement"));
+            }
+            return send.future;
+        }
+
+        private void acknowledge(long messageId) {
+            PendingSend send = pending.remove(messageId);
+            if (send != null) {
+                window.release();
+                long roundTripNanos = System.nanoTime() - send.sentNanos;
+                send.future.complete(new Client.Acknowledgement(messageId, roundTripNanos));
+            }
+        }
+
+        private void failPending(IOException failure) {
+            for (Long messageId : pending.keySet()) {
+                PendingSend send = pending.remove(messageId);
+                if (send != null) {
+                    window.release();
+                    send.future.completeExceptionally(failure);
+                }
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A send waiting for its acknowledgement.
+     */
+    private static final class PendingSend {
+        private final CompletableFuture<Client.Acknowledgement> future = new CompletableFuture<>();
+        private final long sentNanos = System.nanoTime();
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * ExecutionMode enum selects how Server and Client run their I/O tasks.
+ * The cached pool spends one platform thread per connection; virtual threads keep the
+ * same blocking code but park cheaply, so idle connections cost only a small heap object.
+ * Virtual threads need a JDK 21 runtime; they are looked up reflectively so the
+ * project still compiles for Java 11.
+ */
+package net;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public enum ExecutionMode {
+    /** Platform threads from {@link Executors#newCachedThreadPool()}, one per running task */
+    CACHED_POOL,
+
+    /** A new virtual thread per task (JDK 21 or newer) */
+    VIRTUAL_THREADS;
+
+    /** Factory method for virtual-thread executors, or null when the runtime lacks them */
+    private static final Method VIRTUAL_EXECUTOR_FACTORY = findVirtualExecutorFactory();
+
+    /**
+     * Checks whether this mode can be used on the running JDK.
+     *
+     * @return true if executors of this mode can be created
+     */
+    public boolean isSupported() {
+        return this != VIRTUAL_THREADS || VIRTUAL_EXECUTOR_FACTORY != null;
+    }
+
+    /**
+     * Creates a new executor for this mode.
+     *
+     * @return A new executor service; the caller is responsible for shutting it down
+     * @throws IllegalStateException if the mode is not supported on the running JDK
+     */
+    public ExecutorService newExecutor() {
+        switch (this) {
+            case VIRTUAL_THREADS:
+                if (VIRTUAL_EXECUTOR_FACTORY == null) {
+                    throw new IllegalStateException("Virtual threads require JDK 21 or newer");
+                }
+                try {
+                    return (ExecutorService) VIRTUAL_EXECUTOR_FACTORY.invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException("Unable to create virtual-thread executor", e);
+                }
+            case CACHED_POOL:
+            default:
+                return Executors.newCachedThreadPool();
+        }
+    }
+
+    private static Method findVirtualExecutorFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * IncomingFile class writes one received file attachment to disk for either Server mode.
+ * Data is written to a temporary ".part" file with FileChannel.transferFrom and moved to its
+ * final name only once every byte has arrived, so listeners never see a partial file.
+ * Every receive gets its own part file, so two files of the same name can arrive at once, and a file
+ * never replaces an earlier one: it is stored as "name (1).ext", "name (2).ext" and so on instead.
+ */
+package net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+final class IncomingFile implements Closeable {
+    /** Location the file is named after; an existing file there is kept */
+    private final Path target;
+
+    /** Temporary location while the file is being received */
+    private final Path part;
+
+    /** Channel writing to the temporary file */
+    private final FileChannel channel;
+
+    /** Total number of bytes expected */
+    private final long size;
+
+    /** Number of bytes received so far */
+    private long position;
+
+    private IncomingFile(Path target, long size) throws IOException {
+        this.target = target;
+        this.part = Files.createTempFile(target.getParent(), target.getFileName() + ".", ".part");
+        this.size = size;
+        try {
+            this.channel = FileChannel.open(part, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            Files.deleteIfExists(part);
+            throw e;
+        }
+    }
+
+    /**
+     * Starts receiving a file into the given directory.
+     *
+     * @param directory The directory received files are stored in
+     * @param message The metadata of the file being received
+     * @return The incoming file, positioned at offset 0
+     * @throws IOException if the file name is unsafe or the file cannot be created
+     */
+    static IncomingFile open(Path directory, Client.FileMessage message) throws IOException {
+        if (message.getFileSize() < 0) {
+            throw new IOException("Invalid file size: " + message.getFileSize());
+        }
+        Files.createDirectories(directory);
+        return new IncomingFile(directory.resolve(safeFileName(message.getFileName())), message.getFileSize());
+    }
+
+    /**
+     * Reduces a sender-supplied name to a plain file name, so it cannot escape the receive directory
+     * or take the name of the directory holding unfinished transfers.
+     *
+     * @param fileName The file name sent by the client
+     * @return The last path element of the name
+     * @throws IOException if the name is missing or nothing usable remains
+     */
+    static Path safeFileName(String fileName) throws IOException {
+        if (fileName == null) {
+            throw new IOException("Missing file name");
+        }
+        try {
+            Path name = Paths.get(fileName).getFileName();
+            if (name == null || name.toString().isEmpty() || name.toString().equals("..")
+                    || name.toString().equals(ResumableFile.STATE_DIRECTORY)) {
+                throw new IOException("Invalid file name: " + fileName);
+            }
+            return name;
+        } catch (InvalidPathException e) {
+            throw new IOException("Invalid file name: " + fileName, e);
+        }
+    }
+
+    /**
+     * Moves a completed file to the target, or to the first free "name (n).ext" beside it if the target exists.
+     * The name is claimed by creating it, so concurrent moves to the same target never overwrite each other.
+     *
+     * @param source The completed file
+     * @param target The location the file is named after
+     * @return The location the file was moved to
+     * @throws IOException if the file cannot be moved
+     */
+    static Path moveToFreeName(Path source, Path target) throws IOException {
+        String name = target.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        Path candidate = target;
+        for (int copy = 1;; copy++) {
+            try {
+                Files.createFile(candidate);
+                break;
+            } catch (FileAlreadyExistsException e) {
+                candidate = target.resolveSibling(base + " (" + copy + ")" + extension);
+            }
+        }
+        try {
+            return Files.move(source, candidate, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(candidate);
+            throw e;
+        }
+    }
+
+    /**
+     * @param message The metadata the sender sent
+     * @param stored The location the file was stored at
+     * @return The metadata with the file name it was stored under
+     */
+    static Client.FileMessage storedAs(Client.FileMessage message, Path stored) {
+        String name = stored.getFileName().toString();
+        if (name.equals(message.getFileName())) {
+            return message;
+        }
+        return new Client.FileMessage(message.getSender(), name, message.getFileSize(), message.getTimestamp());
+    }
+
+    /**
+     * Transfers up to the remaining number of bytes straight from a channel into the file.
+     *
+     * @param source The channel to read from; may be non-blocking
+     * @return The number of bytes transferred, 0 if none were available or the source reached its end
+     * @throws IOException if reading or writing fails
+     */
+    long transferFrom(ReadableByteChannel source) throws IOException {
+        long transferred = channel.transferFrom(source, position, size - position);
+        position += transferred;
+        return transferred;
+    }
+
+    /**
+     * Writes bytes that were already read into a buffer, up to the remaining number of bytes.
+     *
+     * @param buffer A buffer in read mode; advanced past the bytes written
+     * @throws IOException if writing fails
+     */
+    void write(ByteBuffer buffer) throws IOException {
+        int count = (int) Math.min(buffer.remaining(), size - position);
+        ByteBuffer slice = buffer.slice();
+        slice.limit(count);
+        while (slice.hasRemaining()) {
+            position += channel.write(slice, position);
+        }
+        buffer.position(buffer.position() + count);
+    }
+
+    /** @return true once every expected byte has been received */
+    boolean isComplete() {
+        return position == size;
+    }
+
+    /**
+     * Closes the file and moves it to its final name, or to a free name beside it if that is taken.
+     *
+     * @return The final location of the file
+     * @throws IOException if the file is incomplete or cannot be moved
+     */
+    Path complete() throws IOException {
+        if (!isComplete()) {
+            throw new IOException("File incomplete: " + position + " of " + size + " bytes");
+        }
+        channel.close();
+        return moveToFreeName(part, target);
+    }
+
+    /**
+     * Discards a partially received file.
+     */
+    @Override
+    public void close() {
+        try {
+            if (channel.isOpen()) {
+                channel.close();
+                Files.deleteIfExists(part);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ * NetBenchmark class is a command-line benchmark for the net package.
+ * The executors benchmark opens many concurrent connections against a blocking-mode Server in each
+ * supported ExecutionMode and reports elapsed time, peak platform threads and heap use.
+ * The files benchmark sends files of several sizes with zero-copy transfer, with the
+ * buffered copy loop and as a resumable chunked transfer, and reports throughput for each.
+ * The streams benchmark sends one file as a chunked transfer over 1, 2, 4 and more parallel
+ * connections, showing how throughput scales with the stream count. Over loopback there is no
+ * latency to hide, so it mostly shows the cost and parallelism of the receiving side.
+ *
+ * Usage: java net.NetBenchmark executors [connections] [messagesPerConnection]
+ *        java net.NetBenchmark files [sizeInMegabytes...]
+ *        java net.NetBenchmark streams [sizeInMegabytes] [maxStreams]
+ */
+package net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public final class NetBenchmark {
+    /** Host the benchmark server is reached on */
+    private static final String HOST = "localhost";
+
+    private NetBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args The benchmark name followed by its optional parameters
+     * @throws Exception if the benchmark cannot run
+     */
+    public static void main(String[] args) throws Exception {
+        String benchmark = args.length > 0 ? args[0] : "executors";
+        switch (benchmark) {
+            case "executors":
+                runExecutors(
+                        args.length > 1 ? Integer.parseInt(args[1]) : 2000,
+                        args.length > 2 ? Integer.parseInt(args[2]) : 10);
+                break;
+            case "files":
+                long[] sizes = args.length > 1
+                        ? Arrays.stream(args, 1, args.length).mapToLong(Long::parseLong).toArray()
+                        : new long[] { 1, 100, 2048 };
+                runFiles(sizes);
+                break;
+            case "streams":
+                runStreams(
+                        args.length > 1 ? Long.parseLong(args[1]) : 1024,
+                        args.length > 2 ? Integer.parseInt(args[2]) : 16);
+                break;
+            default:
+                System.err.println("Unknown benchmark: " + benchmark + " (expected executors, files or streams)");
+        }
+    }
+
+    private static void runExecutors(int connections, int messages) throws Exception {
+        System.out.printf("%-16s %12s %12s %14s %12s%n", "mode", "connections", "elapsed ms", "peak threads", "heap MB");
+        for (ExecutionMode mode : ExecutionMode.values()) {
+            if (!mode.isSupported()) {
+                System.out.printf("%-16s skipped (requires a newer JDK)%n", mode);
+                continue;
+            }
+            runExecutionMode(mode, connections, messages);
+        }
+    }
+
+    /**
+     * Holds all connections open at once and pushes messages over each of them,
+     * so every connection is served concurrently by its own task.
+     */
+    private static void runExecutionMode(ExecutionMode mode, int connections, int messages) throws Exception {
+        int port = freePort();
+        CountDownLatch received = new CountDownLatch(connections * messages);
+        Server server = new Server(port, mode);
+        server.setMessageListener(message -> received.countDown());
+        server.start();
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        List<Socket> sockets = new ArrayList<>(connections);
+        List<ObjectOutputStream> outputs = new ArrayList<>(connections);
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < connections; i++) {
+                Socket socket = new Socket(HOST, port);
+                sockets.add(socket);
+                outputs.add(new ObjectOutputStream(socket.getOutputStream()));
+            }
+            for (int round = 0; round < messages; round++) {
+                for (ObjectOutputStream output : outputs) {
+                    output.writeObject(new Client.Message("bench", "message " + round));
+                    output.reset();
+                    output.flush();
+                }
+            }
+            if (!received.await(5, TimeUnit.MINUTES)) {
+                System.out.printf("%-16s timed out with %d messages outstanding%n", mode, received.getCount());
+            }
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            Runtime runtime = Runtime.getRuntime();
+            long heapMegabytes = (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024);
+            System.out.printf("%-16s %12d %12d %14d %12d%n",
+                    mode, server.getConnectionCount(), elapsedMillis, threads.getPeakThreadCount(), heapMegabytes);
+        } finally {
+            server.stop();
+            for (Socket socket : sockets) {
+                closeQuietly(socket);
+            }
+            System.gc();
+        }
+    }
+
+    /**
+     * Sends each file size three times through a blocking-mode Server: copying through a heap buffer,
+     * with transferTo, and as checksummed chunks that are committed to disk one by one.
+     * Reports the throughput of each.
+     */
+    private static void runFiles(long[] sizesInMegabytes) throws Exception {
+        int port = freePort();
+        Path directory = Files.createTempDirectory("netbench");
+        Server server = new Server(port);
+        server.setFileDirectory(directory.resolve("received"));
+        server.start();
+        Client client = new Client(HOST, port);
+
+        System.out.printf("%-10s %-10s %12s %12s%n", "size MB", "transfer", "elapsed ms", "MB/s");
+        try {
+            for (long megabytes : sizesInMegabytes) {
+                File file = createFile(directory, megabytes * 1024 * 1024);
+                try {
+                    for (String transfer : new String[] { "copy", "transferTo", "chunked" }) {
+                        long start = System.nanoTime();
+                        if (transfer.equals("chunked")) {
+                            client.sendFile(file, "bench");
+                        } else {
+                            client.streamFile(file, "bench", transfer.equals("transferTo"));
+                        }
+                        long elapsedNanos = System.nanoTime() - start;
+                        System.out.printf("%-10d %-10s %12d %12.1f%n", megabytes, transfer,
+                                TimeUnit.NANOSECONDS.toMillis(elapsedNanos), megabytes / (elapsedNanos / 1e9));
+                        Files.deleteIfExists(server.getFileDirectory().resolve(file.getName()));
+                    }
+                } finally {
+                    Files.deleteIfExists(file.toPath());
+                }
+            }
+        } finally {
+            client.close();
+            server.stop();
+            Files.deleteIfExists(server.getFileDirectory());
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    /**
+     * Sends one file as a chunked transfer with doubling stream counts in both Server modes
+     * and reports the throughput of each.
+     */
+    private static void runStreams(long megabytes, int maxStreams) throws Exception {
+        Path directory = Files.createTempDirectory("netbench");
+        File file = createFile(directory, megabytes * 1024 * 1024);
+        System.out.printf("%-10s %8s %12s %12s%n", "server", "streams", "elapsed ms", "MB/s");
+        try {
+            for (Server.Mode mode : Server.Mode.values()) {
+                int port = freePort();
+                Server server = new Server(port, mode);
+                server.setFileDirectory(directory.resolve("received"));
+                server.start();
+                try (Client client = new Client(HOST, port)) {
+                    for (int streams = 1; streams <= maxStreams; streams *= 2) {
+                        long start = System.nanoTime();
+                        client.sendFile(file, "bench", Client.DEFAULT_CHUNK_SIZE, streams);
+                        long elapsedNanos = System.nanoTime() - start;
+                        System.out.printf("%-10s %8d %12d %12.1f%n", mode, streams,
+                                TimeUnit.NANOSECONDS.toMillis(elapsedNanos), megabytes / (elapsedNanos / 1e9));
+                        Files.deleteIfExists(server.getFileDirectory().resolve(file.getName()));
+                    }
+                } finally {
+                    server.stop();
+                }
+            }
+        } finally {
+            Files.deleteIfExists(file.toPath());
+            Files.deleteIfExists(directory.resolve("received"));
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    /**
+     * Creates a file of the given size filled with non-zero data, so it is not stored sparsely.
+     */
+    private static File createFile(Path directory, long size) throws IOException {
+        Path path = directory.resolve("bench-" + size + ".bin");
+        ByteBuffer block = ByteBuffer.allocate(1024 * 1024);
+        new Random(size).nextBytes(block.array());
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for (long written = 0; written < size; ) {
+                block.clear().limit((int) Math.min(block.capacity(), size - written));
+                while (block.hasRemaining()) {
+                    written += channel.write(block);
+                }
+            }
+        }
+        return path.toFile();
+    }
+
+    /**
+     * Finds a currently unused local port for a benchmark server.
+     */
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Benchmark teardown; the server side is already stopped
+        }
+    }
+}
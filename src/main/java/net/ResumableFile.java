@@ -0,0 +1,360 @@
+/**
+ * ResumableFile class stores one chunked transfer so it can continue after a dropped connection.
+ * The file is split into the byte ranges given by {@link WireCodec#rangeStart}, one per stream;
+ * each range is written by its own connection with positional writes into a ".part" file that is
+ * sized to the full file length up front. Chunks are only accepted in order within their range and
+ * with a matching CRC32C. Every {@link #CHECKPOINT_BYTES} or {@link #CHECKPOINT_MILLIS}, and whenever a
+ * range is finished, the data is forced to disk and the offset of every range is recorded in a ".progress"
+ * sidecar, so later connections for the same transfer pick up where the last checkpoint left off; forcing
+ * each chunk would stall every connection sharing a selector thread. The sidecar also records a fingerprint
+ * of the file metadata, so a resume with different metadata starts over.
+ * Both files live in the {@link #STATE_DIRECTORY} subdirectory, which no received file can be named into,
+ * and are named after the sender and transfer id, so transfers of other senders or other files never
+ * share them. The part file is moved to its final name once every range is committed,
+ * or to a free name beside it such as "name (1).ext" if a file of that name already exists.
+ * Instances are shared by the connections of one transfer and are safe for concurrent use.
+ */
+package net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.zip.CRC32C;
+
+final class ResumableFile implements Closeable {
+    /** Subdirectory of the receive directory holding the part and progress files of unfinished transfers */
+    static final String STATE_DIRECTORY = ".transfers";
+
+    /** Bytes written since the last checkpoint after which the data is forced and the sidecar updated */
+    static final long CHECKPOINT_BYTES = 16L * 1024 * 1024;
+
+    /** Longest time in milliseconds a written chunk waits for a checkpoint while chunks keep arriving */
+    static final long CHECKPOINT_MILLIS = 1000;
+
+    /** Id the client uses for this file across reconnects */
+    private final long transferId;
+
+    /** Name of the part and progress files, derived from the sender and transfer id */
+    private final String stateName;
+
+    /** Fingerprint of the file metadata and layout, recorded in the sidecar */
+    private final UUID identity;
+
+    /** Metadata of the file, dispatched once it is complete */
+    private final Client.FileMessage message;
+
+    /** Number of ranges the file is split into */
+    private final int streams;
+
+    /** Location the file is named after; an existing file there is kept */
+    private final Path target;
+
+    /** Temporary location while the file is being received */
+    private final Path part;
+
+    /** Sidecar recording the committed offset of each range */
+    private final Path progressPath;
+
+    /** Channel writing to the temporary file; positional writes from several connections */
+    private final FileChannel channel;
+
+    /** Channel writing to the sidecar */
+    private final FileChannel progress;
+
+    /** Reused buffer for sidecar records; guarded by this */
+    private final ByteBuffer progressRecord;
+
+    /** Absolute offset up to which each range is written and verified; guarded by this */
+    private final long[] committed;
+
+    /** Bytes written since the last checkpoint; guarded by this */
+    private long uncheckpointed;
+
+    /** System.nanoTime() of the last checkpoint; guarded by this */
+    private long lastCheckpoint;
+
+    /** Number of connections using this transfer; guarded by the owning TransferRegistry */
+    int references;
+
+    /** Set once the file has been moved to its final name; guarded by this */
+    private boolean completed;
+
+    /** Metadata with the name the file was stored under, once completed; guarded by this */
+    private Client.FileMessage stored;
+
+    private ResumableFile(Path target, Path stateDirectory, long transferId, Client.FileMessage message,
+            int streams) throws IOException {
+        this.target = target;
+        this.transferId = transferId;
+        this.message = message;
+        this.streams = streams;
+        this.stateName = stateName(transferId, message.getSender());
+        this.identity = UUID.nameUUIDFromBytes((transferId + "\0" + message.getSender() + "\0"
+                + message.getFileName() + "\0" + message.getFileSize() + "\0" + streams)
+                .getBytes(StandardCharsets.UTF_8));
+        this.committed = new long[streams];
+        this.progressRecord = ByteBuffer.allocate((2 + streams) * Long.BYTES);
+        this.lastCheckpoint = System.nanoTime();
+        this.part = stateDirectory.resolve(stateName + ".part");
+        this.progressPath = stateDirectory.resolve(stateName + ".progress");
+        this.channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            this.progress = FileChannel.open(progressPath, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the name of the part and progress files of a transfer. Transfer ids are chosen by clients,
+     * so the name is scoped by the sender as well.
+     *
+     * @param transferId The id the client uses for the file
+     * @param sender The sender named in the transfer's metadata
+     * @return The name, without extension, of the transfer's files in {@link #STATE_DIRECTORY}
+     */
+    static String stateName(long transferId, String sender) {
+        return UUID.nameUUIDFromBytes((transferId + "\0" + sender).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    /**
+     * Starts a transfer, or resumes it if earlier connections left committed data for the same
+     * sender, id, metadata and layout. Leftover files of the same sender and id with different metadata
+     * or a different stream count are discarded.
+     *
+     * @param directory The directory received files are stored in
+     * @param transferId The id the client uses for this file
+     * @param message The metadata of the file being received
+     * @param streams The number of ranges the file is sent in
+     * @return The transfer, with the committed offset of each range restored
+     * @throws IOException if the file name is unsafe or the files cannot be opened
+     */
+    static ResumableFile open(Path directory, long transferId, Client.FileMessage message, int streams)
+            throws IOException {
+        if (message.getFileSize() < 0) {
+            throw new IOException("Invalid file size: " + message.getFileSize());
+        }
+        if (streams < 1 || streams > WireCodec.MAX_STREAMS) {
+            throw new IOException("Invalid stream count: " + streams);
+        }
+        Path target = directory.resolve(IncomingFile.safeFileName(message.getFileName()));
+        Path stateDirectory = Files.createDirectories(directory.resolve(STATE_DIRECTORY));
+        ResumableFile file = new ResumableFile(target, stateDirectory, transferId, message, streams);
+        try {
+            file.recover();
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        return file;
+    }
+
+    /**
+     * Restores the committed offsets from the sidecar if it describes this transfer,
+     * otherwise starts over with an empty file of the full length.
+     */
+    private synchronized void recover() throws IOException {
+        long size = message.getFileSize();
+        if (progress.read(progressRecord, 0) == progressRecord.capacity() && channel.size() == size) {
+            progressRecord.flip();
+            boolean matches = progressRecord.getLong() == identity.getMostSignificantBits()
+                    && progressRecord.getLong() == identity.getLeastSignificantBits();
+            for (int range = 0; matches && range < streams; range++) {
+                committed[range] = progressRecord.getLong();
+                matches = committed[range] >= rangeStart(range) && committed[range] <= rangeEnd(range);
+            }
+            if (matches) {
+                return;
+            }
+        }
+
+        for (int range = 0; range < streams; range++) {
+            committed[range] = rangeStart(range);
+        }
+        channel.truncate(0);
+        if (size > 0) {
+            // Give the file its final length so every range can be written at its own offset
+            channel.write(ByteBuffer.allocate(1), size - 1);
+        }
+        saveProgress();
+    }
+
+    /** @return The id the client uses for this file */
+    long getTransferId() {
+        return transferId;
+    }
+
+    /** @return The name of the part and progress files */
+    String getStateName() {
+        return stateName;
+    }
+
+    /**
+     * Checks whether a begin frame describes this transfer.
+     *
+     * @param transferId The id in the begin frame
+     * @param message The metadata in the begin frame
+     * @param streams The stream count in the begin frame
+     * @return true if the id, sender, file name, size and stream count all match
+     */
+    boolean matches(long transferId, Client.FileMessage message, int streams) {
+        return transferId == this.transferId && streams == this.streams
+                && Objects.equals(message.getSender(), this.message.getSender())
+                && Objects.equals(message.getFileName(), this.message.getFileName())
+                && message.getFileSize() == this.message.getFileSize();
+    }
+
+    /** @return The metadata with the name the file was stored under, or null until it is completed */
+    synchronized Client.FileMessage getStoredMessage() {
+        return stored;
+    }
+
+    /** @return The number of ranges the file is sent in */
+    int getStreams() {
+        return streams;
+    }
+
+    /**
+     * @param range The index of a range
+     * @return The absolute offset up to which the range is written; on disk once checkpointed
+     */
+    synchronized long getCommitted(int range) {
+        return committed[range];
+    }
+
+    /**
+     * @param range The index of a range
+     * @return The absolute offset just past the end of the range
+     */
+    long rangeEnd(int range) {
+        return WireCodec.rangeStart(message.getFileSize(), streams, range + 1);
+    }
+
+    private long rangeStart(int range) {
+        return WireCodec.rangeStart(message.getFileSize(), streams, range);
+    }
+
+    /** @return true once every range is committed */
+    synchronized boolean isComplete() {
+        for (int range = 0; range < streams; range++) {
+            if (committed[range] != rangeEnd(range)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Verifies a chunk, writes it at its offset and commits it, checkpointing if one is due
+     * or the chunk finishes its range.
+     * Chunks of different ranges may be written concurrently.
+     *
+     * @param range The range the chunk belongs to; only one connection writes each range
+     * @param offset The absolute position of the chunk; must equal the range's committed offset
+     * @param expectedChecksum The CRC32C the client computed for the chunk
+     * @param data The chunk data; consumed
+     * @throws IOException if the chunk is out of order, crosses the range end or is corrupt, or cannot be written
+     */
+    void write(int range, long offset, int expectedChecksum, ByteBuffer data) throws IOException {
+        long position = getCommitted(range);
+        if (offset != position) {
+            throw new IOException("Chunk at offset " + offset + " while range " + range
+                    + " is committed up to " + position);
+        }
+        if (data.remaining() > rangeEnd(range) - position) {
+            throw new IOException("Chunk at offset " + offset + " crosses the end of range " + range);
+        }
+        CRC32C checksum = new CRC32C();
+        checksum.update(data.duplicate());
+        if ((int) checksum.getValue() != expectedChecksum) {
+            throw new IOException("Checksum mismatch in chunk at offset " + offset);
+        }
+
+        long start = position;
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+        synchronized (this) {
+            committed[range] = position;
+            uncheckpointed += position - start;
+            // A finished range is not sent again, so it must survive a crash
+            if (position == rangeEnd(range) || uncheckpointed >= CHECKPOINT_BYTES
+                    || System.nanoTime() - lastCheckpoint >= CHECKPOINT_MILLIS * 1_000_000) {
+                checkpoint();
+            }
+        }
+    }
+
+    /**
+     * Forces the written data to disk, then records the offsets it covers in the sidecar.
+     */
+    private void checkpoint() throws IOException {
+        // Data must be on disk before the sidecar claims it
+        channel.force(false);
+        saveProgress();
+        uncheckpointed = 0;
+        lastCheckpoint = System.nanoTime();
+    }
+
+    private void saveProgress() throws IOException {
+        progressRecord.clear();
+        progressRecord.putLong(identity.getMostSignificantBits()).putLong(identity.getLeastSignificantBits());
+        for (long offset : committed) {
+            progressRecord.putLong(offset);
+        }
+        progressRecord.flip();
+        while (progressRecord.hasRemaining()) {
+            progress.write(progressRecord, progressRecord.position());
+        }
+    }
+
+    /**
+     * Closes the file, moves it to its final name or a free name beside it, and removes the sidecar.
+     * Only the first call after the last range is committed does this.
+     *
+     * @return true if this call completed the file, false if it was already completed
+     * @throws IOException if the file is incomplete or cannot be moved
+     */
+    synchronized boolean complete() throws IOException {
+        if (completed) {
+            return false;
+        }
+        if (!isComplete()) {
+            throw new IOException("File incomplete: " + message.getFileName());
+        }
+        close();
+        stored = IncomingFile.storedAs(message, IncomingFile.moveToFreeName(part, target));
+        Files.deleteIfExists(progressPath);
+        completed = true;
+        return true;
+    }
+
+    /**
+     * Checkpoints and closes the files, keeping the committed data so the transfer can be resumed.
+     */
+    @Override
+    public synchronized void close() {
+        try {
+            if (channel.isOpen() && uncheckpointed > 0) {
+                checkpoint();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        try {
+            channel.close();
+            progress.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
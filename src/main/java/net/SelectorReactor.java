@@ -0,0 +1,570 @@
+/**
+ * SelectorReactor class implements the non-blocking mode of Server.
+ * A fixed set of reactor threads each own a Selector; the first one also accepts
+ * connections and hands them out round-robin to the others.
+ * Frames are decoded with WireCodec and dispatched on the reactor thread that read them,
+ * so listeners should hand slow work off instead of blocking.
+ * Legacy clients, which write one Java serialization stream per connection and then close it,
+ * are buffered until end of stream and decoded in one go.
+ * Acknowledgements produced while handling one read are written back together; whatever the
+ * socket does not accept immediately is kept and written when the channel becomes writable.
+ * File data following a file header frame is moved into the file with FileChannel.transferFrom
+ * as it becomes readable, without blocking the reactor. Chunked transfer frames are handled
+ * by a per-connection TransferReceiver, exactly as in blocking mode.
+ */
+package net;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+final class SelectorReactor {
+    /** Initial size of each connection's read buffer; grown on demand for larger frames */
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    /** Largest backlog of unwritten acknowledgements before a client that does not read them is dropped */
+    private static final int MAX_OUTBOUND_SIZE = 1024 * 1024;
+
+    /** Port number the reactor listens on */
+    private final int port;
+
+    /** Event loops, one per reactor thread */
+    private final EventLoop[] loops;
+
+    /** Listener receiving every decoded message */
+    private final Server.MessageListener listener;
+
+    /** Supplies the directory received files are stored in */
+    private final Supplier<Path> fileDirectory;
+
+    /** Chunked transfers in progress, shared with the owning Server */
+    private final TransferRegistry transfers;
+
+    /** Number of currently open client connections */
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
+    /** Channel accepting client connections */
+    private ServerSocketChannel serverChannel;
+
+    /** Flag indicating if the reactor is currently running */
+    private volatile boolean running;
+
+    /** Round-robin cursor for distributing accepted connections; only used by the accepting loop */
+    private int nextLoop;
+
+    /**
+     * Constructs a new SelectorReactor.
+     *
+     * @param port The port number to listen on
+     * @param threads The number of reactor threads
+     * @param listener The listener to dispatch decoded messages to
+     * @param fileDirectory Supplies the directory received files are stored in
+     * @param transfers The chunked transfers in progress, shared by their parallel connections
+     */
+    SelectorReactor(int port, int threads, Server.MessageListener listener, Supplier<Path> fileDirectory,
+            TransferRegistry transfers) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one reactor thread is required");
+        }
+        this.port = port;
+        this.loops = new EventLoop[threads];
+        this.listener = listener;
+        this.fileDirectory = fileDirectory;
+        this.transfers = transfers;
+    }
+
+    /**
+     * Binds the server channel and starts the reactor threads.
+     *
+     * @throws IOException if the port cannot be bound or a selector cannot be opened
+     */
+    void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(Selector.open());
+        }
+        // Register before the threads start so the registration cannot block on a running select()
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+
+        running = true;
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "server-reactor-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the reactor threads and closes every open connection.
+     */
+    void stop() {
+        running = false;
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.selector.wakeup();
+            }
+        }
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** @return The number of currently open client connections */
+    int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * A single reactor thread multiplexing many connections over one Selector.
+     */
+    private final class EventLoop implements Runnable {
+        /** Selector owned by this loop */
+        private final Selector selector;
+
+        /** Accepted channels waiting to be registered on this loop's selector */
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Hands an accepted channel to this loop; it is registered on the loop's own thread.
+         *
+         * @param channel The accepted client channel
+         */
+        void enqueue(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    registerPending();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        if (key.isWritable()) {
+                            write(key);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(key);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            } finally {
+                closeAll();
+            }
+        }
+
+        /**
+         * Accepts all pending connections and distributes them across the loops.
+         */
+        private void accept() throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                connectionCount.incrementAndGet();
+                loops[nextLoop].enqueue(channel);
+                nextLoop = (nextLoop + 1) % loops.length;
+            }
+        }
+
+        /**
+         * Registers channels handed to this loop since the last select.
+         */
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                try {
+                    Connection connection = new Connection(channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    closeChannel(channel);
+                }
+            }
+        }
+
+        /**
+         * Reads available bytes from a connection and dispatches any complete frames.
+         *
+         * @param key The selection key of the readable connection
+         */
+        private void read(SelectionKey key) {
+            Connection connection = (Connection) key.attachment();
+            try {
+                if (connection.incoming != null) {
+                    if (!connection.receiveFile()) {
+                        throw new EOFException("Connection closed during file transfer");
+                    }
+                } else if (connection.channel.read(connection.buffer) < 0) {
+                    connection.onEndOfStream();
+                    close(key);
+                    return;
+                } else {
+                    connection.onData();
+                }
+                connection.flush();
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+                close(key);
+            }
+        }
+
+        /**
+         * Writes pending acknowledgements to a connection that has become writable.
+         *
+         * @param key The selection key of the writable connection
+         */
+        private void write(SelectionKey key) {
+            try {
+                ((Connection) key.attachment()).flush();
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+                close(key);
+            }
+        }
+
+        private void close(SelectionKey key) {
+            key.cancel();
+            ((Connection) key.attachment()).abortFile();
+            closeChannel((SocketChannel) key.channel());
+        }
+
+        /**
+         * Closes every channel owned by this loop, then the selector itself.
+         */
+        private void closeAll() {
+            for (SelectionKey key : selector.keys()) {
+                if (key.channel() instanceof SocketChannel) {
+                    ((Connection) key.attachment()).abortFile();
+                    closeChannel((SocketChannel) key.channel());
+                }
+            }
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                closeChannel(channel);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void closeChannel(SocketChannel channel) {
+        try {
+            if (channel.isOpen()) {
+                channel.close();
+                connectionCount.decrementAndGet();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Per-connection read state: the channel, its negotiated protocol and its partially filled buffer.
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        /** Selection key of the channel, set once it is registered */
+        private SelectionKey key;
+
+        /** Acknowledgements not yet written, in write mode; null when there are none */
+        private ByteBuffer outbound;
+
+        /** Protocol selected by the connection's first byte, or null until it arrives */
+        private Boolean legacy;
+
+        /** File currently being received, or null while reading frames */
+        private IncomingFile incoming;
+
+        /** Metadata of the file being received */
+        private Client.FileMessage incomingMessage;
+
+        /** Id acknowledged once the file being received is complete, or 0 */
+        private long incomingMessageId;
+
+        /** Chunked transfer frames received on this connection */
+        private final TransferReceiver receiver;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.receiver = new TransferReceiver(fileDirectory.get(), transfers);
+        }
+
+        /**
+         * Processes newly read bytes, negotiating the protocol on the first one.
+         *
+         * @throws IOException if the protocol byte is unknown or a frame is malformed
+         */
+        void onData() throws IOException {
+            if (legacy == null) {
+                if (buffer.position() == 0) {
+                    return;
+                }
+                byte first = buffer.get(0);
+                if (first == WireCodec.PROTOCOL_VERSION) {
+                    legacy = Boolean.FALSE;
+                    buffer.flip();
+                    buffer.get();
+                    buffer.compact();
+                } else if (first == WireCodec.LEGACY_STREAM_MAGIC) {
+                    legacy = Boolean.TRUE;
+                } else {
+                    throw new IOException("Unsupported protocol byte: " + (first & 0xFF));
+                }
+            }
+
+            if (!legacy) {
+                drainFrames();
+            } else if (!buffer.hasRemaining()) {
+                if (buffer.capacity() >= WireCodec.MAX_FRAME_LENGTH) {
+                    throw new IOException("Legacy stream exceeds " + WireCodec.MAX_FRAME_LENGTH + " bytes");
+                }
+                grow(Math.min(buffer.capacity() * 2, WireCodec.MAX_FRAME_LENGTH));
+            }
+        }
+
+        /**
+         * Decodes a buffered legacy stream once the client has finished writing it.
+         *
+         * @throws IOException if the stream is not valid Java serialization
+         */
+        void onEndOfStream() throws IOException {
+            if (legacy != Boolean.TRUE) {
+                return;
+            }
+            try (ObjectInputStream input = new ObjectInputStream(
+                    new ByteArrayInputStream(buffer.array(), 0, buffer.position()))) {
+                while (true) {
+                    dispatch(input.readObject());
+                }
+            } catch (EOFException e) {
+                // End of the buffered stream
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Unknown message class in legacy stream", e);
+            }
+        }
+
+        /**
+         * Decodes and dispatches every complete frame in the buffer.
+         * Keeps a trailing partial frame and grows the buffer if that frame does not fit.
+         *
+         * @throws IOException if a frame is malformed
+         */
+        private void drainFrames() throws IOException {
+            buffer.flip();
+            int required = 0;
+            while (buffer.remaining() >= WireCodec.LENGTH_PREFIX_SIZE) {
+                int length = buffer.getInt(buffer.position());
+                WireCodec.checkLength(length);
+                int frameSize = WireCodec.LENGTH_PREFIX_SIZE + length;
+                if (buffer.remaining() < frameSize) {
+                    required = frameSize;
+                    break;
+                }
+
+                ByteBuffer payload = buffer.slice();
+                payload.position(WireCodec.LENGTH_PREFIX_SIZE).limit(frameSize);
+                buffer.position(buffer.position() + frameSize);
+                long messageId = WireCodec.readAckRequest(payload);
+                if (WireCodec.isFileData(payload)) {
+                    startFile((Client.FileMessage) WireCodec.decode(payload), messageId);
+                    // File bytes that arrived together with the header are already in the buffer
+                    incoming.write(buffer);
+                    if (!incoming.isComplete()) {
+                        break;
+                    }
+                    completeFile();
+                    continue;
+                }
+                if (WireCodec.isTransfer(payload)) {
+                    ByteBuffer reply = receiver.receive(payload, SelectorReactor.this::dispatch);
+                    if (reply != null) {
+                        queue(reply);
+                    }
+                } else {
+                    dispatch(WireCodec.decode(payload));
+                }
+                if (messageId != 0) {
+                    queue(WireCodec.encodeAck(messageId));
+                }
+            }
+            buffer.compact();
+
+            if (required > buffer.capacity()) {
+                grow(required);
+            } else if (buffer.position() == 0 && buffer.capacity() > READ_BUFFER_SIZE) {
+                // Give back the memory of an oversized frame once it has been consumed
+                buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            }
+        }
+
+        /**
+         * Moves readable file bytes into the file being received.
+         *
+         * @return false if the client closed the connection before the file was complete
+         * @throws IOException if reading or writing fails
+         */
+        boolean receiveFile() throws IOException {
+            if (incoming.transferFrom(channel) == 0) {
+                // Nothing transferred: either no data yet or end of stream, which transferFrom cannot tell apart
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    return false;
+                }
+                buffer.flip();
+                incoming.write(buffer);
+                buffer.compact();
+            }
+            if (incoming.isComplete()) {
+                completeFile();
+                if (buffer.position() > 0) {
+                    drainFrames();
+                }
+            }
+            return true;
+        }
+
+        private void startFile(Client.FileMessage message, long messageId) throws IOException {
+            incoming = IncomingFile.open(fileDirectory.get(), message);
+            incomingMessage = message;
+            incomingMessageId = messageId;
+        }
+
+        private void completeFile() throws IOException {
+            Path stored;
+            try {
+                stored = incoming.complete();
+            } finally {
+                incoming.close();
+                incoming = null;
+            }
+            dispatch(IncomingFile.storedAs(incomingMessage, stored));
+            if (incomingMessageId != 0) {
+                queue(WireCodec.encodeAck(incomingMessageId));
+            }
+        }
+
+        /**
+         * Discards a partially received file when the connection goes away.
+         * An unfinished chunked transfer keeps its committed data for a later resume.
+         */
+        void abortFile() {
+            if (incoming != null) {
+                incoming.close();
+                incoming = null;
+            }
+            receiver.close();
+        }
+
+        /**
+         * Appends a frame to the outbound buffer.
+         *
+         * @param frame The frame to send back to the client
+         * @throws IOException if the client has let too much unread data pile up
+         */
+        private void queue(ByteBuffer frame) throws IOException {
+            if (outbound == null) {
+                outbound = ByteBuffer.allocate(Math.max(256, frame.remaining()));
+            } else if (outbound.remaining() < frame.remaining()) {
+                int required = outbound.position() + frame.remaining();
+                if (required > MAX_OUTBOUND_SIZE) {
+                    throw new IOException("Client is not reading acknowledgements");
+                }
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(required, outbound.capacity() * 2));
+                outbound.flip();
+                larger.put(outbound);
+                outbound = larger;
+            }
+            outbound.put(frame);
+        }
+
+        /**
+         * Writes as much outbound data as the socket accepts, and waits for writability for the rest.
+         *
+         * @throws IOException if the write fails
+         */
+        void flush() throws IOException {
+            if (outbound == null) {
+                return;
+            }
+            outbound.flip();
+            channel.write(outbound);
+            if (outbound.hasRemaining()) {
+                outbound.compact();
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } else {
+                outbound = null;
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private void grow(int capacity) {
+            ByteBuffer larger = ByteBuffer.allocate(capacity);
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+    }
+
+    /**
+     * Passes a decoded message to the listener, isolating the reactor from listener failures.
+     *
+     * @param message The decoded message
+     */
+    private void dispatch(Object message) {
+        try {
+            listener.onMessageReceived(message);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+}
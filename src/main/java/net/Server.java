@@ -1,41 +1,111 @@
 /**
  * Server class implements a multi-threaded TCP server for handling client connections.
- * Uses a thread pool to manage client connections and message handling.
+ * In blocking mode it uses a thread pool with one thread per client connection;
+ * in selector mode a small fixed set of reactor threads multiplexes all connections.
  * Supports asynchronous message processing through a listener interface.
  */
 package net;
 
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class Server {
     /** Port number the server listens on */
     private final int port;
     
-    /** Thread pool for managing client connections and message handling */
+    /** I/O model used to serve client connections */
+    private final Mode mode;
+    
+    /** Number of reactor threads used in selector mode */
+    private final int reactorThreads;
+    
+    /** Executor for managing client connections and message handling */
     private final ExecutorService threadPool;
     
     /** Server socket for accepting client connections */
     private ServerSocket serverSocket;
     
+    /** Reactor serving connections in selector mode */
+    private SelectorReactor reactor;
+    
+    /** Open client connections in blocking mode, closed when the server stops */
+    private final Set<Socket> clientSockets = ConcurrentHashMap.newKeySet();
+    
     /** Flag indicating if the server is currently running */
-    private boolean running;
+    private volatile boolean running;
     
     /** Listener for handling received messages */
-    private MessageListener messageListener;
+    private volatile MessageListener messageListener;
+    
+    /** Directory that received file attachments are stored in */
+    private volatile Path fileDirectory = Paths.get("data", "files");
+    
+    /** Chunked transfers in progress, shared by the parallel connections of each transfer */
+    private final TransferRegistry transfers = new TransferRegistry();
 
     /**
-     * Constructs a new Server instance.
+     * Constructs a new Server instance in blocking mode.
      * 
      * @param port The port number to listen on
      */
     public Server(int port) {
+        this(port, Mode.BLOCKING);
+    }
+
+    /**
+     * Constructs a new Server instance using the given I/O model.
+     * Selector mode uses one reactor thread per available processor.
+     * 
+     * @param port The port number to listen on
+     * @param mode The I/O model used to serve client connections
+     */
+    public Server(int port, Mode mode) {
+        this(port, mode, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructs a new Server instance using the given I/O model.
+     * 
+     * @param port The port number to listen on
+     * @param mode The I/O model used to serve client connections
+     * @param reactorThreads The number of reactor threads used in selector mode
+     */
+    public Server(int port, Mode mode, int reactorThreads) {
+        this(port, mode, reactorThreads, ExecutionMode.CACHED_POOL);
+    }
+
+    /**
+     * Constructs a new Server instance in blocking mode whose connection threads
+     * come from the given execution mode.
+     * 
+     * @param port The port number to listen on
+     * @param executionMode How connection handling tasks are run
+     */
+    public Server(int port, ExecutionMode executionMode) {
+        this(port, Mode.BLOCKING, Runtime.getRuntime().availableProcessors(), executionMode);
+    }
+
+    private Server(int port, Mode mode, int reactorThreads, ExecutionMode executionMode) {
         this.port = port;
-        this.threadPool = Executors.newCachedThreadPool();
+        this.mode = mode;
+        this.reactorThreads = reactorThreads;
+        this.threadPool = executionMode.newExecutor();
     }
 
     /**
@@ -47,13 +117,35 @@ public class Server {
         this.messageListener = listener;
     }
 
+    /**
+     * Sets the directory received file attachments are stored in.
+     * The listener is notified with the file's FileMessage once it is complete in this directory.
+     * 
+     * @param directory The directory for received files; created on demand
+     */
+    public void setFileDirectory(Path directory) {
+        this.fileDirectory = directory;
+    }
+
+    /** @return The directory received file attachments are stored in */
+    public Path getFileDirectory() {
+        return fileDirectory;
+    }
+
     /**
      * Starts the server and begins accepting client connections.
-     * Creates a new thread for accepting connections and handles clients asynchronously.
+     * In blocking mode, creates a new thread for accepting connections and handles clients asynchronously.
+     * In selector mode, starts the reactor threads.
      */
     public void start() {
+        if (mode == Mode.SELECTOR) {
+            startReactor();
+            return;
+        }
         try {
-            serverSocket = new ServerSocket(port);
+            // Channel-backed sockets let file data be received with FileChannel.transferFrom
+            serverSocket = ServerSocketChannel.open().socket();
+            serverSocket.bind(new InetSocketAddress(port));
             running = true;
             
             // Start accepting connections in a separate thread
@@ -61,6 +153,7 @@ public class Server {
                 while (running) {
                     try {
                         Socket clientSocket = serverSocket.accept();
+                        clientSocket.setTcpNoDelay(true);
                         handleClient(clientSocket);
                     } catch (IOException e) {
                         if (running) {
@@ -74,26 +167,62 @@ public class Server {
         }
     }
 
+    /**
+     * Starts the selector reactor, which dispatches decoded frames to the current message listener.
+     */
+    private void startReactor() {
+        reactor = new SelectorReactor(port, reactorThreads, this::dispatch, this::getFileDirectory, transfers);
+        try {
+            reactor.start();
+            running = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            reactor.stop();
+        }
+    }
+
+    /**
+     * Notifies the message listener, if any, of a received message.
+     * 
+     * @param message The received message object
+     */
+    private void dispatch(Object message) {
+        MessageListener listener = messageListener;
+        if (listener != null) {
+            listener.onMessageReceived(message);
+        }
+    }
+
     /**
      * Handles a client connection in a separate thread.
-     * Continuously reads messages from the client and notifies the message listener.
+     * The first byte selects the protocol: binary frames or a legacy Java serialization stream.
+     * Continuously reads messages from the client and notifies the message listener
+     * until the client closes the connection, so one connection can carry many messages.
      * 
      * @param clientSocket The socket connected to the client
      */
     private void handleClient(Socket clientSocket) {
+        clientSockets.add(clientSocket);
         threadPool.execute(() -> {
-            try (ObjectInputStream input = new ObjectInputStream(clientSocket.getInputStream())) {
-                while (running) {
-                    Object message = input.readObject();
-                    if (messageListener != null) {
-                        messageListener.onMessageReceived(message);
-                    }
+            try (PushbackInputStream input = new PushbackInputStream(clientSocket.getInputStream(), 1)) {
+                int first = input.read();
+                if (first == WireCodec.PROTOCOL_VERSION) {
+                    readFrames(new DataInputStream(input), new BufferedOutputStream(clientSocket.getOutputStream()),
+                            clientSocket.getChannel());
+                } else if (first == (WireCodec.LEGACY_STREAM_MAGIC & 0xFF)) {
+                    input.unread(first);
+                    readObjects(new ObjectInputStream(input));
+                } else if (first >= 0) {
+                    throw new IOException("Unsupported protocol byte: " + first);
                 }
+            } catch (EOFException e) {
+                // The client closed its connection
             } catch (IOException | ClassNotFoundException e) {
                 if (running) {
                     e.printStackTrace();
                 }
             } finally {
+                clientSockets.remove(clientSocket);
                 try {
                     clientSocket.close();
                 } catch (IOException e) {
@@ -103,12 +232,114 @@ public class Server {
         });
     }
 
+    /**
+     * Reads binary frames until the connection is closed.
+     * The payload buffer is reused across frames and only grows for larger ones.
+     * Frames that request an acknowledgement are acknowledged after the listener has processed them;
+     * acknowledgements are flushed once no further input is already waiting, so pipelined
+     * messages share a write.
+     * The input stream does not read ahead, so file data following a file header frame
+     * can be taken straight from the socket channel.
+     * Chunked transfer frames are handed to a TransferReceiver, which keeps an unfinished
+     * transfer's committed data when the connection ends.
+     * 
+     * @param input The connection input, positioned after the protocol version byte
+     * @param output The connection output, used for acknowledgements
+     * @param channel The socket channel underlying the input, used to receive file data
+     * @throws IOException if there's an error reading or decoding a frame
+     */
+    private void readFrames(DataInputStream input, OutputStream output, SocketChannel channel) throws IOException {
+        byte[] header = new byte[WireCodec.LENGTH_PREFIX_SIZE];
+        byte[] payload = new byte[8192];
+        boolean unflushed = false;
+        try (TransferReceiver receiver = new TransferReceiver(fileDirectory, transfers)) {
+            while (running) {
+                input.readFully(header);
+                int length = ByteBuffer.wrap(header).getInt();
+                WireCodec.checkLength(length);
+                if (length > payload.length) {
+                    payload = new byte[length];
+                }
+                input.readFully(payload, 0, length);
+
+                ByteBuffer frame = ByteBuffer.wrap(payload, 0, length);
+                long messageId = WireCodec.readAckRequest(frame);
+                if (WireCodec.isFileData(frame)) {
+                    Client.FileMessage file = (Client.FileMessage) WireCodec.decode(frame);
+                    dispatch(receiveFile(file, channel));
+                } else if (WireCodec.isTransfer(frame)) {
+                    ByteBuffer reply = receiver.receive(frame, this::dispatch);
+                    if (reply != null) {
+                        output.write(reply.array(), reply.arrayOffset(), reply.remaining());
+                        unflushed = true;
+                    }
+                } else {
+                    dispatch(WireCodec.decode(frame));
+                }
+                if (messageId != 0) {
+                    ByteBuffer ack = WireCodec.encodeAck(messageId);
+                    output.write(ack.array(), ack.arrayOffset(), ack.remaining());
+                    unflushed = true;
+                }
+                if (unflushed && input.available() == 0) {
+                    output.flush();
+                    unflushed = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Receives the raw bytes of a file straight from the socket channel into the receive directory.
+     * 
+     * @param file The metadata of the file, from its header frame
+     * @param channel The blocking socket channel the file bytes arrive on
+     * @return The metadata of the file with the name it was stored under
+     * @throws IOException if the connection ends early or the file cannot be written
+     */
+    private Client.FileMessage receiveFile(Client.FileMessage file, SocketChannel channel) throws IOException {
+        try (IncomingFile incoming = IncomingFile.open(fileDirectory, file)) {
+            while (!incoming.isComplete()) {
+                if (incoming.transferFrom(channel) == 0) {
+                    throw new EOFException("Connection closed during file transfer");
+                }
+            }
+            return IncomingFile.storedAs(file, incoming.complete());
+        }
+    }
+
+    /**
+     * Reads Java-serialized objects from a legacy client until the connection is closed.
+     * 
+     * @param input The object stream of the connection
+     * @throws IOException if there's an error reading from the connection
+     * @throws ClassNotFoundException if a received object's class is unknown
+     */
+    private void readObjects(ObjectInputStream input) throws IOException, ClassNotFoundException {
+        while (running) {
+            dispatch(input.readObject());
+        }
+    }
+
+    /**
+     * Returns the number of currently open client connections.
+     * Useful for comparing the footprint of the two I/O models under load.
+     * 
+     * @return The number of open client connections
+     */
+    public int getConnectionCount() {
+        return mode == Mode.SELECTOR && reactor != null ? reactor.getConnectionCount() : clientSockets.size();
+    }
+
     /**
      * Stops the server and cleans up resources.
-     * Closes the server socket and shuts down the thread pool.
+     * Closes the server socket and open client connections, and shuts down the thread pool or reactor.
      */
     public void stop() {
         running = false;
+        if (reactor != null) {
+            reactor.stop();
+        }
         threadPool.shutdown();
         try {
             if (serverSocket != null && !serverSocket.isClosed()) {
@@ -117,6 +348,24 @@ public class Server {
         } catch (IOException e) {
             e.printStackTrace();
         }
+        for (Socket clientSocket : clientSockets) {
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * I/O models supported by the server.
+     */
+    public enum Mode {
+        /** One pooled thread per connection */
+        BLOCKING,
+        
+        /** A fixed set of Selector-based reactor threads multiplexing all connections */
+        SELECTOR
     }
 
     /**
@@ -0,0 +1,112 @@
+/**
+ * TransferReceiver class handles the chunked transfer frames of one connection for either Server mode.
+ * A begin frame opens, joins or resumes a transfer for one of its ranges and is answered with the
+ * range's committed offset; chunk frames are verified and committed, and the last one of the range
+ * is answered with the range end. Whichever connection commits the final range of the file moves it
+ * into place and dispatches it to the listener before answering.
+ * Any invalid chunk fails the connection; the client reconnects and resumes from the committed offset.
+ */
+package net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+final class TransferReceiver implements Closeable {
+    /** Directory received files are stored in */
+    private final Path directory;
+
+    /** Transfers shared with the server's other connections */
+    private final TransferRegistry registry;
+
+    /** Transfer currently open on this connection, or null */
+    private ResumableFile current;
+
+    /** Range of the current transfer that this connection sends */
+    private int range;
+
+    /**
+     * Constructs a new TransferReceiver.
+     *
+     * @param directory The directory received files are stored in
+     * @param registry The transfers shared with the server's other connections
+     */
+    TransferReceiver(Path directory, TransferRegistry registry) {
+        this.directory = directory;
+        this.registry = registry;
+    }
+
+    /**
+     * Handles one transfer begin or chunk frame.
+     *
+     * @param payload A frame payload for which {@link WireCodec#isTransfer} is true
+     * @param listener The listener notified once a file is complete
+     * @return The offset frame to send back to the client, or null if none is due
+     * @throws IOException if the frame is malformed or its chunk is rejected
+     */
+    ByteBuffer receive(ByteBuffer payload, Server.MessageListener listener) throws IOException {
+        long transferId;
+        Client.FileMessage message = null;
+        int streams = 0;
+        int stream = 0;
+        long offset = 0;
+        int checksum = 0;
+        try {
+            byte type = payload.get();
+            transferId = WireCodec.getVarLong(payload);
+            if (type == WireCodec.TYPE_TRANSFER_BEGIN) {
+                streams = (int) WireCodec.getVarLong(payload);
+                stream = (int) WireCodec.getVarLong(payload);
+                message = WireCodec.getFileMessage(payload);
+            } else {
+                offset = WireCodec.getVarLong(payload);
+                checksum = payload.getInt();
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed transfer frame", e);
+        }
+
+        if (message != null) {
+            if (stream < 0 || stream >= streams) {
+                throw new IOException("Invalid stream " + stream + " of " + streams);
+            }
+            close();
+            current = registry.acquire(directory, transferId, message, streams);
+            range = stream;
+            return finishRange(listener);
+        }
+        if (current == null || current.getTransferId() != transferId) {
+            throw new IOException("Chunk for transfer " + transferId + " which was not begun on this connection");
+        }
+        current.write(range, offset, checksum, payload);
+        return current.getCommitted(range) == current.rangeEnd(range) ? finishRange(listener) : null;
+    }
+
+    /**
+     * Reports the committed offset of this connection's range; once the whole file is committed,
+     * first completes it and notifies the listener.
+     */
+    private ByteBuffer finishRange(Server.MessageListener listener) throws IOException {
+        ResumableFile file = current;
+        long committed = file.getCommitted(range);
+        if (file.isComplete()) {
+            if (registry.complete(file)) {
+                listener.onMessageReceived(file.getStoredMessage());
+            }
+            close();
+        }
+        return WireCodec.encodeTransferOffset(file.getTransferId(), committed);
+    }
+
+    /**
+     * Leaves the open transfer, keeping its committed data for a later resume.
+     */
+    @Override
+    public void close() {
+        if (current != null) {
+            registry.release(current);
+            current = null;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * TransferRegistry class lets the parallel connections of one chunked transfer share a single ResumableFile.
+ * The first connection to begin a transfer opens it; later ones join it if their begin frame names the
+ * same file, and the last one to leave closes it, keeping its committed data on disk for a resume.
+ * Transfer ids are chosen by clients, so transfers are keyed by sender as well as id.
+ * When transfers are opened, the part and progress files of transfers that nobody has touched for
+ * {@link #STALE_MILLIS} are removed, at most once every {@link #SWEEP_INTERVAL_MILLIS}.
+ * One registry is owned by each Server and used by both of its modes.
+ */
+package net;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+final class TransferRegistry {
+    /** Age after which the files of a transfer that is not open are considered abandoned */
+    static final long STALE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    /** Shortest time between two sweeps for abandoned transfers */
+    static final long SWEEP_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /** Transfers with at least one connection, keyed by the name of their files; guarded by this */
+    private final Map<String, ResumableFile> open = new HashMap<>();
+
+    /** System.currentTimeMillis() of the last sweep, or 0 before the first; guarded by this */
+    private long lastSweep;
+
+    /**
+     * Opens a transfer, or joins it if another connection already has it open.
+     *
+     * @param directory The directory received files are stored in
+     * @param transferId The id the client uses for the file
+     * @param message The metadata of the file
+     * @param streams The number of ranges the file is sent in
+     * @return The shared transfer; must be passed back to {@link #release}
+     * @throws IOException if the transfer is open with different metadata or layout, or cannot be opened
+     */
+    synchronized ResumableFile acquire(Path directory, long transferId, Client.FileMessage message, int streams)
+            throws IOException {
+        String name = ResumableFile.stateName(transferId, message.getSender());
+        ResumableFile file = open.get(name);
+        if (file == null) {
+            removeStale(directory);
+            file = ResumableFile.open(directory, transferId, message, streams);
+            open.put(name, file);
+        } else if (!file.matches(transferId, message, streams)) {
+            throw new IOException("Transfer " + transferId + " is already open for a different file");
+        }
+        file.references++;
+        return file;
+    }
+
+    /**
+     * Completes a transfer whose ranges are all committed and removes it from the registry,
+     * so a later begin with the same id starts afresh.
+     *
+     * @param file A transfer obtained from {@link #acquire}
+     * @return true if this call completed the file, false if another connection already did
+     * @throws IOException if the file cannot be moved to its final name
+     */
+    synchronized boolean complete(ResumableFile file) throws IOException {
+        if (!file.complete()) {
+            return false;
+        }
+        open.remove(file.getStateName(), file);
+        return true;
+    }
+
+    /**
+     * Leaves a transfer; the last connection to leave closes it.
+     *
+     * @param file A transfer obtained from {@link #acquire}
+     */
+    synchronized void release(ResumableFile file) {
+        if (--file.references == 0) {
+            open.remove(file.getStateName(), file);
+            file.close();
+        }
+    }
+
+    /**
+     * Deletes the files of transfers that are not open and have not been written for {@link #STALE_MILLIS},
+     * unless the directory was swept less than {@link #SWEEP_INTERVAL_MILLIS} ago.
+     */
+    private void removeStale(Path directory) {
+        long now = System.currentTimeMillis();
+        if (now - lastSweep < SWEEP_INTERVAL_MILLIS) {
+            return;
+        }
+        lastSweep = now;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory.resolve(ResumableFile.STATE_DIRECTORY))) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int extension = name.lastIndexOf('.');
+                if (!open.containsKey(extension < 0 ? name : name.substring(0, extension))
+                        && now - Files.getLastModifiedTime(file).toMillis() > STALE_MILLIS) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // No transfer has been received into this directory yet
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
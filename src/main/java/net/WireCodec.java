@@ -0,0 +1,552 @@
+/**
+ * WireCodec class defines the binary protocol shared by Client and Server.
+ * A binary connection starts with a single {@link #PROTOCOL_VERSION} byte, followed by frames.
+ * Each frame is a four-byte big-endian length followed by that many payload bytes; the payload
+ * starts with a one-byte type tag. Integers are unsigned LEB128 varints and strings are a varint
+ * of the byte length plus one followed by UTF-8, encoded and decoded directly against the frame buffer;
+ * a varint 0 stands for a null string, which Java serialization carried as well.
+ * A connection whose first byte is {@link #LEGACY_STREAM_MAGIC} is a Java serialization stream
+ * from an older client.
+ * A message frame may be prefixed with {@link #TYPE_ACK_REQUEST} and a message id; the server
+ * answers such frames with a {@link #TYPE_ACK} frame on the same connection once it has processed them.
+ * A {@link #TYPE_FILE_DATA} frame carries file metadata and is followed on the stream by the raw
+ * file bytes, so the file itself can be moved with transferTo and transferFrom.
+ * Resumable transfers open with a {@link #TYPE_TRANSFER_BEGIN} frame, which the server answers with
+ * a {@link #TYPE_TRANSFER_OFFSET} frame carrying the number of bytes it has already committed; the
+ * client then sends the rest of the file as {@link #TYPE_TRANSFER_CHUNK} frames, each holding its
+ * offset, a CRC32C of its data and the data itself. The server answers again once the file is complete.
+ * A transfer may be split into several byte ranges, laid out by {@link #rangeStart}, each sent over
+ * its own connection; the begin frame names the stream count and the range that connection sends,
+ * and offsets are then reported per range.
+ */
+package net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+final class WireCodec {
+    /** First byte of a binary-protocol connection; bumped on incompatible frame changes */
+    static final byte PROTOCOL_VERSION = 2;
+
+    /** First byte of a Java serialization stream (high byte of ObjectStreamConstants.STREAM_MAGIC) */
+    static final byte LEGACY_STREAM_MAGIC = (byte) 0xAC;
+
+    /** Size of the length prefix in bytes */
+    static final int LENGTH_PREFIX_SIZE = Integer.BYTES;
+
+    /** Largest payload accepted from the wire; protects readers from hostile length prefixes */
+    static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    /** Frame type: a {@link Client.Message} */
+    static final byte TYPE_MESSAGE = 1;
+
+    /** Frame type: a {@link Client.FileMessage} */
+    static final byte TYPE_FILE = 2;
+
+    /** Frame prefix: the message that follows must be acknowledged; carries a varint message id */
+    static final byte TYPE_ACK_REQUEST = 3;
+
+    /** Frame type: acknowledgement sent by the server; carries the varint message id */
+    static final byte TYPE_ACK = 4;
+
+    /** Frame type: file metadata followed by exactly fileSize raw bytes outside the frame */
+    static final byte TYPE_FILE_DATA = 5;
+
+    /** Frame type: start or resume of a chunked transfer; carries a transfer id, stream count, stream index and the file metadata */
+    static final byte TYPE_TRANSFER_BEGIN = 6;
+
+    /** Frame type: one chunk of a transfer; carries the transfer id, offset, CRC32C and the chunk data */
+    static final byte TYPE_TRANSFER_CHUNK = 7;
+
+    /** Frame type: sent by the server; carries the transfer id and the offset its range is committed up to */
+    static final byte TYPE_TRANSFER_OFFSET = 8;
+
+    /** Largest chunk data that fits in a frame next to the chunk's own fields */
+    static final int MAX_CHUNK_SIZE = MAX_FRAME_LENGTH - 32;
+
+    /** Largest number of parallel streams one transfer may be split into */
+    static final int MAX_STREAMS = 64;
+
+    /** Frame type: any other serializable object, carried as Java serialization bytes */
+    static final byte TYPE_SERIALIZED = 127;
+
+    private WireCodec() {
+    }
+
+    /**
+     * Encodes a message into a complete frame, including its length prefix.
+     *
+     * @param message The message to encode
+     * @return A heap buffer positioned at the start of the frame, ready to be written
+     * @throws IOException if the message cannot be encoded or exceeds the frame limit
+     */
+    static ByteBuffer encode(Object message) throws IOException {
+        return encode(message, 0);
+    }
+
+    /**
+     * Encodes a message into a complete frame that asks the server for an acknowledgement.
+     *
+     * @param message The message to encode
+     * @param messageId The id echoed back in the acknowledgement, or 0 for no acknowledgement
+     * @return A heap buffer positioned at the start of the frame, ready to be written
+     * @throws IOException if the message cannot be encoded or exceeds the frame limit
+     */
+    static ByteBuffer encode(Object message, long messageId) throws IOException {
+        if (message instanceof Client.Message) {
+            Client.Message text = (Client.Message) message;
+            int length = 1 + varLongSize(text.getTimestamp())
+                    + stringSize(text.getSender()) + stringSize(text.getContent());
+            ByteBuffer frame = allocateFrame(length, messageId);
+            frame.put(TYPE_MESSAGE);
+            putVarLong(frame, text.getTimestamp());
+            putString(frame, text.getSender());
+            putString(frame, text.getContent());
+            return frame.flip();
+        }
+        if (message instanceof Client.FileMessage) {
+            return encodeFile(TYPE_FILE, (Client.FileMessage) message, messageId);
+        }
+
+        byte[] serialized = serialize(message);
+        ByteBuffer frame = allocateFrame(1 + serialized.length, messageId);
+        frame.put(TYPE_SERIALIZED);
+        frame.put(serialized);
+        return frame.flip();
+    }
+
+    /**
+     * Encodes the header frame of a file transfer; the caller writes the file bytes right after it.
+     *
+     * @param file The metadata of the file being sent
+     * @param messageId The id acknowledged once the whole file is stored, or 0 for no acknowledgement
+     * @return A heap buffer positioned at the start of the frame, ready to be written
+     * @throws IOException if the metadata exceeds the frame limit
+     */
+    static ByteBuffer encodeFileHeader(Client.FileMessage file, long messageId) throws IOException {
+        return encodeFile(TYPE_FILE_DATA, file, messageId);
+    }
+
+    private static ByteBuffer encodeFile(byte type, Client.FileMessage file, long messageId) throws IOException {
+        int length = 1 + varLongSize(file.getTimestamp()) + stringSize(file.getSender())
+                + stringSize(file.getFileName()) + varLongSize(file.getFileSize());
+        ByteBuffer frame = allocateFrame(length, messageId);
+        frame.put(type);
+        putVarLong(frame, file.getTimestamp());
+        putString(frame, file.getSender());
+        putString(frame, file.getFileName());
+        putVarLong(frame, file.getFileSize());
+        return frame.flip();
+    }
+
+    /**
+     * Encodes the frame that starts or resumes one stream of a chunked transfer.
+     *
+     * @param transferId The id identifying this file across reconnects
+     * @param streams The number of ranges the file is split into
+     * @param stream The index of the range sent on this connection
+     * @param file The metadata of the file being sent
+     * @return A heap buffer positioned at the start of the frame, ready to be written
+     * @throws IOException if the metadata exceeds the frame limit
+     */
+    static ByteBuffer encodeTransferBegin(long transferId, int streams, int stream, Client.FileMessage file)
+            throws IOException {
+        int length = 1 + varLongSize(transferId) + varLongSize(streams) + varLongSize(stream)
+                + varLongSize(file.getTimestamp()) + stringSize(file.getSender())
+                + stringSize(file.getFileName()) + varLongSize(file.getFileSize());
+        ByteBuffer frame = allocateFrame(length, 0);
+        frame.put(TYPE_TRANSFER_BEGIN);
+        putVarLong(frame, transferId);
+        putVarLong(frame, streams);
+        putVarLong(frame, stream);
+        putVarLong(frame, file.getTimestamp());
+        putString(frame, file.getSender());
+        putString(frame, file.getFileName());
+        putVarLong(frame, file.getFileSize());
+        return frame.flip();
+    }
+
+    /**
+     * Encodes the fields of a chunk frame; the caller writes the chunk data right after it,
+     * as part of the same frame.
+     *
+     * @param transferId The id of the transfer
+     * @param offset The position of the chunk in the file
+     * @param checksum The CRC32C of the chunk data
+     * @param dataLength The number of data bytes that follow
+     * @return A heap buffer positioned at the start of the frame, ready to be written
+     * @throws IOException if the chunk exceeds {@link #MAX_CHUNK_SIZE}
+     */
+    static ByteBuffer encodeChunkHeader(long transferId, long offset, int checksum, int dataLength)
+            throws IOException {
+        if (dataLength > MAX_CHUNK_SIZE) {
+            throw new IOException("Chunk too large: " + dataLength);
+        }
+        int fieldsLength = 1 + varLongSize(transferId) + varLongSize(offset) + Integer.BYTES;
+        ByteBuffer frame = ByteBuffer.allocate(LENGTH_PREFIX_SIZE + fieldsLength);
+        frame.putInt(fieldsLength + dataLength);
+        frame.put(TYPE_TRANSFER_CHUNK);
+        putVarLong(frame, transferId);
+        putVarLong(frame, offset);
+        frame.putInt(checksum);
+        return frame.flip();
+    }
+
+    /**
+     * Encodes the server's report of how much of a transfer is committed.
+     *
+     * @param transferId The id of the transfer
+     * @param committed The absolute offset up to which the connection's range is stored durably
+     * @return A heap buffer positioned at the start of the frame, ready to be written
+     */
+    static ByteBuffer encodeTransferOffset(long transferId, long committed) {
+        int length = 1 + varLongSize(transferId) + varLongSize(committed);
+        ByteBuffer frame = ByteBuffer.allocate(LENGTH_PREFIX_SIZE + length);
+        frame.putInt(length);
+        frame.put(TYPE_TRANSFER_OFFSET);
+        putVarLong(frame, transferId);
+        putVarLong(frame, committed);
+        return frame.flip();
+    }
+
+    /**
+     * Decodes the server's report of how much of a transfer is committed.
+     *
+     * @param payload A frame payload written by {@link #encodeTransferOffset}
+     * @param transferId The id of the transfer the client is waiting on
+     * @return The absolute offset up to which the range is committed
+     * @throws IOException if the payload is not an offset report for that transfer
+     */
+    static long decodeTransferOffset(ByteBuffer payload, long transferId) throws IOException {
+        try {
+            byte type = payload.get();
+            if (type != TYPE_TRANSFER_OFFSET) {
+                throw new IOException("Unexpected frame type from server: " + type);
+            }
+            long reported = getVarLong(payload);
+            if (reported != transferId) {
+                throw new IOException("Offset for transfer " + reported + " while waiting on " + transferId);
+            }
+            return getVarLong(payload);
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed transfer offset", e);
+        }
+    }
+
+    /**
+     * Returns where a range of a parallel transfer starts; range i covers
+     * {@code [rangeStart(size, streams, i), rangeStart(size, streams, i + 1))}.
+     * Ranges differ in length by at most one byte. Sender and receiver both use this layout.
+     *
+     * @param size The file size
+     * @param streams The number of ranges
+     * @param index The range index, from 0 to streams inclusive
+     * @return The absolute offset of the range's first byte, or the file size for index == streams
+     */
+    static long rangeStart(long size, int streams, int index) {
+        return size / streams * index + Math.min(index, size % streams);
+    }
+
+    /**
+     * Checks whether a frame payload belongs to a chunked transfer, without consuming it.
+     *
+     * @param payload A frame payload, positioned after any acknowledgement request
+     * @return true for transfer begin and chunk frames
+     */
+    static boolean isTransfer(ByteBuffer payload) {
+        if (!payload.hasRemaining()) {
+            return false;
+        }
+        byte type = payload.get(payload.position());
+        return type == TYPE_TRANSFER_BEGIN || type == TYPE_TRANSFER_CHUNK;
+    }
+
+    /**
+     * Checks whether a frame payload is a file transfer header, without consuming it.
+     *
+     * @param payload A frame payload, positioned after any acknowledgement request
+     * @return true if raw file bytes follow the frame on the stream
+     */
+    static boolean isFileData(ByteBuffer payload) {
+        return payload.hasRemaining() && payload.get(payload.position()) == TYPE_FILE_DATA;
+    }
+
+    /**
+     * Encodes the acknowledgement of a processed message.
+     *
+     * @param messageId The id from the message's acknowledgement request
+     * @return A heap buffer positioned at the start of the frame, ready to be written
+     */
+    static ByteBuffer encodeAck(long messageId) {
+        ByteBuffer frame = ByteBuffer.allocate(LENGTH_PREFIX_SIZE + 1 + varLongSize(messageId));
+        frame.putInt(frame.capacity() - LENGTH_PREFIX_SIZE);
+        frame.put(TYPE_ACK);
+        putVarLong(frame, messageId);
+        return frame.flip();
+    }
+
+    /**
+     * Consumes the acknowledgement request prefix of a frame payload, if there is one.
+     *
+     * @param payload A frame payload; left positioned at the message that follows the prefix
+     * @return The message id to acknowledge, or 0 if the frame does not ask for an acknowledgement
+     * @throws IOException if the prefix is malformed
+     */
+    static long readAckRequest(ByteBuffer payload) throws IOException {
+        if (!payload.hasRemaining() || payload.get(payload.position()) != TYPE_ACK_REQUEST) {
+            return 0;
+        }
+        payload.get();
+        try {
+            return getVarLong(payload);
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed acknowledgement request", e);
+        }
+    }
+
+    /**
+     * Decodes an acknowledgement frame payload.
+     *
+     * @param payload A frame payload written by {@link #encodeAck}
+     * @return The acknowledged message id
+     * @throws IOException if the payload is not an acknowledgement
+     */
+    static long decodeAck(ByteBuffer payload) throws IOException {
+        try {
+            byte type = payload.get();
+            if (type != TYPE_ACK) {
+                throw new IOException("Unexpected frame type from server: " + type);
+            }
+            return getVarLong(payload);
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed acknowledgement", e);
+        }
+    }
+
+    /**
+     * Decodes the payload of a single frame.
+     *
+     * @param payload A buffer holding exactly one frame payload, without its length prefix
+     * @return The decoded message object
+     * @throws IOException if the payload is not a valid frame
+     */
+    static Object decode(ByteBuffer payload) throws IOException {
+        if (!payload.hasRemaining()) {
+            throw new IOException("Empty frame");
+        }
+        try {
+            byte type = payload.get();
+            switch (type) {
+                case TYPE_MESSAGE: {
+                    long timestamp = getVarLong(payload);
+                    String sender = getString(payload);
+                    String content = getString(payload);
+                    return new Client.Message(sender, content, timestamp);
+                }
+                case TYPE_FILE:
+                case TYPE_FILE_DATA:
+                    return getFileMessage(payload);
+                case TYPE_SERIALIZED:
+                    return deserialize(payload);
+                default:
+                    throw new IOException("Unknown frame type: " + type);
+            }
+        } catch (RuntimeException e) {
+            // BufferUnderflowException and friends: the frame is shorter than its fields claim
+            throw new IOException("Malformed frame", e);
+        }
+    }
+
+    /**
+     * Reads the file metadata fields shared by file, file data and transfer begin frames.
+     *
+     * @param payload A frame payload positioned at the timestamp field
+     * @return The decoded file metadata
+     * @throws IOException if a field is malformed
+     */
+    static Client.FileMessage getFileMessage(ByteBuffer payload) throws IOException {
+        long timestamp = getVarLong(payload);
+        String sender = getString(payload);
+        String fileName = getString(payload);
+        long fileSize = getVarLong(payload);
+        return new Client.FileMessage(sender, fileName, fileSize, timestamp);
+    }
+
+    /**
+     * Validates a payload length read from or written to the wire.
+     *
+     * @param length The payload length
+     * @throws IOException if the length is not positive or above {@link #MAX_FRAME_LENGTH}
+     */
+    static void checkLength(int length) throws IOException {
+        if (length <= 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+    }
+
+    /**
+     * Allocates a frame for a message body and writes its length prefix and optional acknowledgement request.
+     */
+    private static ByteBuffer allocateFrame(int bodyLength, long messageId) throws IOException {
+        int payloadLength = messageId == 0 ? bodyLength : 1 + varLongSize(messageId) + bodyLength;
+        checkLength(payloadLength);
+        ByteBuffer frame = ByteBuffer.allocate(LENGTH_PREFIX_SIZE + payloadLength);
+        frame.putInt(payloadLength);
+        if (messageId != 0) {
+            frame.put(TYPE_ACK_REQUEST);
+            putVarLong(frame, messageId);
+        }
+        return frame;
+    }
+
+    static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long getVarLong(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+
+    static int stringSize(String value) {
+        if (value == null) {
+            return 1;
+        }
+        int byteLength = utf8Length(value);
+        return varLongSize(byteLength + 1L) + byteLength;
+    }
+
+    /**
+     * Writes a string as a varint of its byte length plus one followed by UTF-8, without an intermediate
+     * byte array; a null string is written as a single varint 0.
+     */
+    static void putString(ByteBuffer buffer, String value) {
+        if (value == null) {
+            putVarLong(buffer, 0);
+            return;
+        }
+        putVarLong(buffer, utf8Length(value) + 1L);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate: same replacement String.getBytes(UTF_8) would produce
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * Reads a string written by {@link #putString}, decoding straight from the frame buffer.
+     */
+    static String getString(ByteBuffer buffer) throws IOException {
+        long encodedLength = getVarLong(buffer);
+        if (encodedLength == 0) {
+            return null;
+        }
+        long byteLength = encodedLength - 1;
+        if (byteLength < 0 || byteLength > buffer.remaining()) {
+            throw new IOException("String length exceeds frame: " + byteLength);
+        }
+        int length = (int) byteLength;
+        String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.duplicate().get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static byte[] serialize(Object message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+            output.writeObject(message);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(ByteBuffer payload) throws IOException {
+        byte[] array;
+        int offset;
+        int length = payload.remaining();
+        if (payload.hasArray()) {
+            array = payload.array();
+            offset = payload.arrayOffset() + payload.position();
+        } else {
+            array = new byte[length];
+            payload.duplicate().get(array);
+            offset = 0;
+        }
+
+        try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(array, offset, length))) {
+            return input.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unknown message class in frame", e);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * GroupCommit class makes writes durable in the background, many at a time.
+ * A store writes a change without forcing it, submits it and hands the returned future to its caller.
+ * A single daemon thread waits until the oldest submitted change is a maximum delay old, or until enough
+ * changes are pending, then runs the store's flush once for all of them and completes their futures.
+ * A burst of changes therefore costs one disk sync, and no change waits longer than the delay plus one flush.
+ */
+package storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+final class GroupCommit implements AutoCloseable {
+    /** Longest time a change waits for others before it is flushed */
+    static final long DEFAULT_MAX_DELAY_MILLIS = 10;
+
+    /** Number of pending changes that triggers a flush without waiting for the delay */
+    static final int DEFAULT_MAX_PENDING = 10000;
+
+    /**
+     * Makes every change written so far durable.
+     */
+    interface Flush {
+        void flush() throws IOException;
+    }
+
+    /** A submitted change and the future completed once it is durable */
+    private static final class Pending<T> {
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private final T value;
+
+        Pending(T value) {
+            this.value = value;
+        }
+
+        void complete() {
+            future.complete(value);
+        }
+    }
+
+    /** Makes the changes durable */
+    private final Flush flush;
+
+    /** Longest time a change waits, in nanoseconds */
+    private final long maxDelayNanos;
+
+    /** Number of pending changes that triggers a flush */
+    private final int maxPending;
+
+    /** Changes submitted since the last flush started; guarded by this */
+    private List<Pending<?>> pending = new ArrayList<>();
+
+    /** When the oldest pending change was submitted; guarded by this */
+    private long oldestNanos;
+
+    /** Set once close was called; guarded by this */
+    private boolean closed;
+
+    /** Number of flushes run */
+    private volatile long flushCount;
+
+    /** The thread running the flushes */
+    private final Thread thread;
+
+    /**
+     * Starts a group commit with the default delay and batch size.
+     *
+     * @param name Name of the flushing thread
+     * @param flush Makes every change written so far durable
+     */
+    GroupCommit(String name, Flush flush) {
+        this(name, flush, DEFAULT_MAX_DELAY_MILLIS, DEFAULT_MAX_PENDING);
+    }
+
+    /**
+     * Starts a group commit.
+     *
+     * @param name Name of the flushing thread
+     * @param flush Makes every change written so far durable
+     * @param maxDelayMillis Longest time a change waits for others before it is flushed
+     * @param maxPending Number of pending changes that triggers a flush without waiting
+     */
+    GroupCommit(String name, Flush flush, long maxDelayMillis, int maxPending) {
+        this.flush = flush;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.maxPending = maxPending;
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Submits a change that has been written but not yet made durable.
+     *
+     * @param value The value to complete the future with
+     * @return A future completed with the value once a flush has made the change durable,
+     *         or completed exceptionally if that flush failed
+     * @throws IllegalStateException if the group commit is closed
+     */
+    synchronized <T> CompletableFuture<T> submit(T value) {
+        if (closed) {
+            throw new IllegalStateException("Group commit is closed");
+        }
+        Pending<T> change = new Pending<>(value);
+        if (pending.isEmpty()) {
+            oldestNanos = System.nanoTime();
+            notifyAll();
+        }
+        pending.add(change);
+        if (pending.size() >= maxPending) {
+            notifyAll();
+        }
+        return change.future;
+    }
+
+    private void run() {
+        while (true) {
+            List<Pending<?>> batch;
+            synchronized (this) {
+                try {
+                    while (!closed && !due()) {
+                        if (pending.isEmpty()) {
+                            wait();
+                        } else {
+                            long remaining = oldestNanos + maxDelayNanos - System.nanoTime();
+                            TimeUnit.NANOSECONDS.timedWait(this, Math.max(1, remaining));
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    closed = true;
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+            }
+            flush(batch);
+        }
+    }
+
+    /** @return true if the pending changes must be flushed now; called holding the lock */
+    private boolean due() {
+        return !pending.isEmpty()
+                && (pending.size() >= maxPending || System.nanoTime() - oldestNanos >= maxDelayNanos);
+    }
+
+    private void flush(List<Pending<?>> batch) {
+        try {
+            flush.flush();
+            flushCount++;
+        } catch (IOException | RuntimeException e) {
+            for (Pending<?> change : batch) {
+                change.future.completeExceptionally(e);
+            }
+            return;
+        }
+        for (Pending<?> change : batch) {
+            change.complete();
+        }
+    }
+
+    /** @return The number of flushes run */
+    long getFlushCount() {
+        return flushCount;
+    }
+
+    /**
+     * Flushes the pending changes without waiting for the delay and stops the thread.
+     * Returns once every submitted change has been flushed.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
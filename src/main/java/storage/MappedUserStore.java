@@ -0,0 +1,834 @@
+/**
+ * MappedUserStore class keeps users in a binary file of fixed-size records with an on-disk hash index,
+ * both read through memory-mapped buffers, so opening a store costs the same however many users it holds
+ * and a lookup touches only the pages of its index slots and of the record it finds.
+ * Nothing is loaded onto the heap except the users a caller asks for.
+ *
+ * users.dat is a 64-byte header [magic, version, record size, count, imported] followed by 160-byte records,
+ * each holding id, username and ip as a 2-byte length and UTF-8 bytes in a fixed slot.
+ * users.idx is a 32-byte header [magic, version, capacity, indexed count, clean] followed by two
+ * open-addressing tables of capacity ints, by username and by id, each slot holding record number + 1
+ * or 0 if empty. The index is kept at most half full and rebuilt from the records when it grows,
+ * or when it was not closed cleanly.
+ * users.srt is a 16-byte header [magic, version, sorted count] followed by the numbers of the first
+ * sorted count records, ordered by username as UsernameOrder orders them but comparing UTF-8 bytes.
+ * A prefix search is a binary search in it plus a scan of the records added since; once more than
+ * TAIL_LIMIT records are outside it, the next flush merges them in, writing a new file.
+ * New records are visible to readers at once and forced to disk in the background by a GroupCommit,
+ * many adds per sync; records are forced before the count in the header that makes them survive a restart,
+ * so a crash never exposes a torn record. If a flush fails, the records it did not make durable are hidden
+ * again before their futures fail, and the store refuses further adds until it is reopened.
+ * Reads take no lock: they go through an immutable view of the mappings and the count, published through
+ * a volatile field after every add. Adds are serialized and only write past the published count or into
+ * empty index slots, and a grown index is built in a new file, so a reader never sees a record change.
+ * Each file is a single mapping, which limits the store to about 13 million users.
+ */
+package storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import storage.UserManager.User;
+
+final class MappedUserStore implements UserStore {
+    /** Name of the record file inside the store directory */
+    static final String DATA_FILE_NAME = "users.dat";
+
+    /** Name of the index file inside the store directory */
+    static final String INDEX_FILE_NAME = "users.idx";
+
+    /** Name of the sorted username file inside the store directory */
+    static final String SORTED_FILE_NAME = "users.srt";
+
+    /** First int of the record file */
+    private static final int DATA_MAGIC = 0x49435544;
+
+    /** First int of the index file */
+    private static final int INDEX_MAGIC = 0x49435549;
+
+    /** First int of the sorted username file */
+    private static final int SORTED_MAGIC = 0x49435553;
+
+    /** Layout version of the files */
+    private static final int VERSION = 1;
+
+    /** Size of the record file header */
+    private static final int DATA_HEADER_LENGTH = 64;
+
+    /** Offset of the record count in the record file header */
+    private static final int COUNT_OFFSET = 12;
+
+    /** Offset of the flag in the record file header set once the initial import has completed */
+    private static final int IMPORTED_OFFSET = 16;
+
+    /** Size of the index file header */
+    private static final int INDEX_HEADER_LENGTH = 32;
+
+    /** Offsets of the capacity, indexed count and clean flag in the index file header */
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int INDEXED_COUNT_OFFSET = 12;
+    private static final int CLEAN_OFFSET = 16;
+
+    /** Size of the sorted username file header, and offset of the sorted count in it */
+    private static final int SORTED_HEADER_LENGTH = 16;
+    private static final int SORTED_COUNT_OFFSET = 8;
+
+    /** Most records a prefix search scans outside the sorted file before they are merged into it */
+    private static final int TAIL_LIMIT = 4096;
+
+    /** Size of a user record */
+    private static final int RECORD_SIZE = 160;
+
+    /** Offsets and lengths, including the 2-byte length, of the fields in a record */
+    private static final int ID_OFFSET = 0;
+    private static final int ID_LENGTH = 32;
+    private static final int USERNAME_OFFSET = 32;
+    private static final int USERNAME_LENGTH = 66;
+    private static final int IP_OFFSET = 98;
+    private static final int IP_LENGTH = 48;
+
+    /** Records a new record file has room for */
+    private static final int INITIAL_RECORDS = 1024;
+
+    /** Most records a single mapping of the record file can hold */
+    private static final int MAX_RECORDS = (Integer.MAX_VALUE - DATA_HEADER_LENGTH) / RECORD_SIZE;
+
+    /** The record file */
+    private final FileChannel dataChannel;
+
+    /** Path of the index file */
+    private final Path indexFile;
+
+    /** The index file; replaced when the index is rebuilt */
+    private FileChannel indexChannel;
+
+    /** Mapping of the whole record file, as written by adds */
+    private MappedByteBuffer data;
+
+    /** Mapping of the whole index file, as written by adds */
+    private MappedByteBuffer index;
+
+    /** Number of records, including ones not yet published */
+    private int count;
+
+    /** Number of records known to be on disk */
+    private int durableCount;
+
+    /** Why a flush failed, or null while the store is healthy */
+    private Exception failure;
+
+    /** Number of slots in each index table, a power of two */
+    private int capacity;
+
+    /** Path of the sorted username file */
+    private final Path sortedFile;
+
+    /** The sorted username file; replaced by every merge, guarded by the flush lock */
+    private FileChannel sortedChannel;
+
+    /** Mapping of the whole sorted username file */
+    private MappedByteBuffer sorted;
+
+    /** Number of records in the sorted username file */
+    private int sortedCount;
+
+    /** What readers see; replaced after every add */
+    private volatile View view;
+
+    /** Serializes flushes, so the count in the header only grows */
+    private final Object flushLock = new Object();
+
+    /** Forces added records to disk in the background */
+    private final GroupCommit commits;
+
+    /**
+     * Opens the store in a directory, creating empty files if they don't exist.
+     * The index and the sorted usernames are rebuilt if they were not closed cleanly or do not match the records.
+     *
+     * @param directory The directory holding users.dat, users.idx and users.srt
+     * @throws IOException if the files cannot be opened or are not user store files
+     */
+    MappedUserStore(Path directory) throws IOException {
+        indexFile = directory.resolve(INDEX_FILE_NAME);
+        sortedFile = directory.resolve(SORTED_FILE_NAME);
+        dataChannel = FileChannel.open(directory.resolve(DATA_FILE_NAME), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        indexChannel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        sortedChannel = FileChannel.open(sortedFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            openData();
+            durableCount = count;
+            openIndex();
+            publish();
+            openSorted();
+        } catch (IOException | RuntimeException e) {
+            dataChannel.close();
+            indexChannel.close();
+            sortedChannel.close();
+            throw e;
+        }
+        commits = new GroupCommit("user-store-sync", this::flush);
+    }
+
+    /**
+     * @param directory A directory
+     * @return true if the directory holds a record file
+     */
+    static boolean exists(Path directory) {
+        return Files.exists(directory.resolve(DATA_FILE_NAME));
+    }
+
+    private void openData() throws IOException {
+        long size = dataChannel.size();
+        if (size == 0) {
+            data = dataChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    DATA_HEADER_LENGTH + (long) INITIAL_RECORDS * RECORD_SIZE);
+            data.putInt(0, DATA_MAGIC);
+            data.putInt(4, VERSION);
+            data.putInt(8, RECORD_SIZE);
+            data.putInt(COUNT_OFFSET, 0);
+            data.force();
+            return;
+        }
+        if (size < DATA_HEADER_LENGTH || size > Integer.MAX_VALUE) {
+            throw new IOException("Not a user store: " + DATA_FILE_NAME + " has " + size + " bytes");
+        }
+        data = dataChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (data.getInt(0) != DATA_MAGIC || data.getInt(4) != VERSION || data.getInt(8) != RECORD_SIZE) {
+            throw new IOException("Not a user store of version " + VERSION + ": " + DATA_FILE_NAME);
+        }
+        count = data.getInt(COUNT_OFFSET);
+        if (count < 0 || count > recordCapacity()) {
+            throw new IOException("Damaged user store: " + DATA_FILE_NAME + " claims " + count + " records");
+        }
+    }
+
+    private void openIndex() throws IOException {
+        long size = indexChannel.size();
+        boolean usable = false;
+        if (size >= INDEX_HEADER_LENGTH && size <= Integer.MAX_VALUE) {
+            index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            capacity = index.getInt(CAPACITY_OFFSET);
+            usable = index.getInt(0) == INDEX_MAGIC && index.getInt(4) == VERSION
+                    && capacity > 0 && Integer.bitCount(capacity) == 1
+                    && size == INDEX_HEADER_LENGTH + 8L * capacity
+                    && index.getInt(CLEAN_OFFSET) == 1 && index.getInt(INDEXED_COUNT_OFFSET) == count
+                    && count <= capacity / 2;
+        }
+        if (!usable) {
+            rebuildIndex(indexCapacityFor(count));
+        }
+        // Until close, a crash leaves the index marked dirty and it is rebuilt on the next open
+        index.putInt(CLEAN_OFFSET, 0);
+        index.force();
+    }
+
+    private void openSorted() throws IOException {
+        long size = sortedChannel.size();
+        if (size >= SORTED_HEADER_LENGTH && size <= Integer.MAX_VALUE) {
+            sorted = sortedChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            sortedCount = sorted.getInt(SORTED_COUNT_OFFSET);
+            if (sorted.getInt(0) == SORTED_MAGIC && sorted.getInt(4) == VERSION && sortedCount >= 0
+                    && sortedCount <= count && size == SORTED_HEADER_LENGTH + 4L * sortedCount) {
+                if (count - sortedCount > TAIL_LIMIT) {
+                    mergeSorted(count);
+                }
+                publish();
+                return;
+            }
+        }
+        // Missing or written for records lost in a crash: sort every record again
+        sortedCount = 0;
+        mergeSorted(count);
+    }
+
+    private int recordCapacity() {
+        return (data.capacity() - DATA_HEADER_LENGTH) / RECORD_SIZE;
+    }
+
+    /**
+     * @param records A number of records
+     * @return The smallest table size keeping the index at most half full, and at least twice the initial records
+     */
+    private static int indexCapacityFor(int records) {
+        int slots = INITIAL_RECORDS * 2;
+        while (slots / 2 < records) {
+            slots *= 2;
+        }
+        return slots;
+    }
+
+    /**
+     * Builds an index of a capacity from the records in a new file and moves it over the old one.
+     * Readers still using the old mapping keep a consistent index until they pick up the next view.
+     */
+    private void rebuildIndex(int newCapacity) throws IOException {
+        Path temporary = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        FileChannel rebuilt = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer oldIndex = index;
+        int oldCapacity = capacity;
+        try {
+            // A new file reads as zeros, so every slot starts empty
+            index = rebuilt.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER_LENGTH + 8L * newCapacity);
+            capacity = newCapacity;
+            index.putInt(0, INDEX_MAGIC);
+            index.putInt(4, VERSION);
+            index.putInt(CAPACITY_OFFSET, capacity);
+            index.putInt(CLEAN_OFFSET, 0);
+            for (int record = 0; record < count; record++) {
+                indexRecord(record);
+            }
+            index.putInt(INDEXED_COUNT_OFFSET, count);
+            Files.move(temporary, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            index = oldIndex;
+            capacity = oldCapacity;
+            rebuilt.close();
+            throw e;
+        }
+        indexChannel.close();
+        indexChannel = rebuilt;
+    }
+
+    /**
+     * Adds a record to both index tables, unless its key is already there; the first record wins.
+     */
+    private void indexRecord(int record) {
+        int base = recordOffset(record);
+        insert(0, base + USERNAME_OFFSET, record);
+        insert(capacity, base + ID_OFFSET, record);
+    }
+
+    private void insert(int table, int field, int record) {
+        int mask = capacity - 1;
+        for (int slot = hash(data, field) & mask;; slot = (slot + 1) & mask) {
+            int position = INDEX_HEADER_LENGTH + (table + slot) * 4;
+            int entry = index.getInt(position);
+            if (entry == 0) {
+                index.putInt(position, record + 1);
+                return;
+            }
+            if (entry - 1 < count && fieldEquals(recordOffset(entry - 1) + (field - recordOffset(record)), field)) {
+                return;
+            }
+        }
+    }
+
+    /** FNV-1a over the bytes of an encoded field */
+    private static int hash(ByteBuffer buffer, int field) {
+        int length = buffer.getShort(field) & 0xFFFF;
+        int hash = 0x811C9DC5;
+        for (int i = 0; i < length; i++) {
+            hash ^= buffer.get(field + 2 + i) & 0xFF;
+            hash *= 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private boolean fieldEquals(int first, int second) {
+        int length = data.getShort(first) & 0xFFFF;
+        if (length != (data.getShort(second) & 0xFFFF)) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (data.get(first + 2 + i) != data.get(second + 2 + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int recordOffset(int record) {
+        return DATA_HEADER_LENGTH + record * RECORD_SIZE;
+    }
+
+    /**
+     * Encodes a field as a 2-byte length and UTF-8 bytes.
+     *
+     * @throws IllegalArgumentException if the value does not fit its slot
+     */
+    private static ByteBuffer encode(String name, String value, int slotLength) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > slotLength - 2) {
+            throw new IllegalArgumentException(name + " longer than " + (slotLength - 2) + " bytes: " + value);
+        }
+        ByteBuffer encoded = ByteBuffer.allocate(2 + bytes.length);
+        encoded.putShort(0, (short) bytes.length);
+        encoded.position(2);
+        encoded.put(bytes);
+        encoded.clear();
+        return encoded;
+    }
+
+    /**
+     * Writes a record after the last one and indexes it, without forcing it or publishing the new count.
+     */
+    private void append(User user) throws IOException {
+        ByteBuffer id = encode("Id", user.getId(), ID_LENGTH);
+        ByteBuffer username = encode("Username", user.getUsername(), USERNAME_LENGTH);
+        ByteBuffer ip = encode("IP", user.getIp(), IP_LENGTH);
+        if (count == recordCapacity()) {
+            growData();
+        }
+        if (count + 1 > capacity / 2) {
+            rebuildIndex(capacity * 2);
+        }
+        int base = recordOffset(count);
+        put(base + ID_OFFSET, id, ID_LENGTH);
+        put(base + USERNAME_OFFSET, username, USERNAME_LENGTH);
+        put(base + IP_OFFSET, ip, IP_LENGTH);
+        count++;
+        indexRecord(count - 1);
+    }
+
+    private void put(int offset, ByteBuffer field, int slotLength) {
+        for (int i = 0; i < slotLength; i++) {
+            data.put(offset + i, i < field.limit() ? field.get(i) : 0);
+        }
+    }
+
+    private void growData() throws IOException {
+        int records = recordCapacity();
+        if (records >= MAX_RECORDS) {
+            throw new IOException("User store is full at " + records + " users");
+        }
+        data.force();
+        int grown = (int) Math.min(MAX_RECORDS, records * 2L);
+        data = dataChannel.map(FileChannel.MapMode.READ_WRITE, 0, DATA_HEADER_LENGTH + (long) grown * RECORD_SIZE);
+    }
+
+    /**
+     * Forces the records added since the last flush, then writes their count to the header and forces it.
+     * Merges the records into the sorted username file if too many are outside it.
+     * Adds can continue meanwhile. If forcing fails, the records not yet durable are hidden and the store
+     * is marked failed before the futures waiting for this flush fail.
+     */
+    private void flush() throws IOException {
+        synchronized (flushLock) {
+            MappedByteBuffer written;
+            int durable;
+            synchronized (this) {
+                checkHealthy();
+                written = data;
+                durable = count;
+            }
+            if (written.getInt(COUNT_OFFSET) == durable) {
+                return;
+            }
+            try {
+                written.force();
+                written.putInt(COUNT_OFFSET, durable);
+                written.force();
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    failure = e;
+                    publish();
+                }
+                throw e;
+            }
+            synchronized (this) {
+                durableCount = durable;
+            }
+            if (durable - sortedCount > TAIL_LIMIT) {
+                mergeSorted(durable);
+            }
+        }
+    }
+
+    /**
+     * Writes a new sorted username file holding the records below a count, merging the records added since
+     * the last merge into the current one, and moves it over the old file. Readers keep using the old
+     * mapping until the next view. Called holding the flush lock, or while opening.
+     *
+     * @param upTo Number of records to cover; all must be on disk
+     */
+    private void mergeSorted(int upTo) throws IOException {
+        ByteBuffer records = view.data;
+        Integer[] added = new Integer[upTo - sortedCount];
+        for (int i = 0; i < added.length; i++) {
+            added[i] = sortedCount + i;
+        }
+        // Stable, so records with equal usernames stay in the order they were added
+        Arrays.sort(added, (first, second) -> compareUsernames(records, first, records, second));
+
+        Path temporary = sortedFile.resolveSibling(sortedFile.getFileName() + ".tmp");
+        FileChannel merged = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer;
+        try {
+            buffer = merged.map(FileChannel.MapMode.READ_WRITE, 0, SORTED_HEADER_LENGTH + 4L * upTo);
+            buffer.putInt(0, SORTED_MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(SORTED_COUNT_OFFSET, upTo);
+            int i = 0;
+            int j = 0;
+            for (int position = SORTED_HEADER_LENGTH; i < sortedCount || j < added.length; position += 4) {
+                if (j == added.length || i < sortedCount && compareUsernames(records,
+                        sorted.getInt(SORTED_HEADER_LENGTH + 4 * i), records, added[j]) <= 0) {
+                    buffer.putInt(position, sorted.getInt(SORTED_HEADER_LENGTH + 4 * i++));
+                } else {
+                    buffer.putInt(position, added[j++]);
+                }
+            }
+            buffer.force();
+            Files.move(temporary, sortedFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            merged.close();
+            throw e;
+        }
+        synchronized (this) {
+            sortedChannel.close();
+            sortedChannel = merged;
+            sorted = buffer;
+            sortedCount = upTo;
+            publish();
+        }
+    }
+
+    /** Compares the usernames of two records in UsernameOrder, by their UTF-8 bytes */
+    private static int compareUsernames(ByteBuffer first, int firstRecord, ByteBuffer second, int secondRecord) {
+        return compareFolded(first, recordOffset(firstRecord) + USERNAME_OFFSET, second,
+                recordOffset(secondRecord) + USERNAME_OFFSET);
+    }
+
+    private static int compareFolded(ByteBuffer first, int firstField, ByteBuffer second, int secondField) {
+        int firstLength = first.getShort(firstField) & 0xFFFF;
+        int secondLength = second.getShort(secondField) & 0xFFFF;
+        int length = Math.min(firstLength, secondLength);
+        for (int i = 0; i < length; i++) {
+            int difference = UsernameOrder.fold(first.get(firstField + 2 + i) & 0xFF)
+                    - UsernameOrder.fold(second.get(secondField + 2 + i) & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return firstLength - secondLength;
+    }
+
+    /** @throws IOException if a flush has failed since the store was opened; called holding the lock */
+    private void checkHealthy() throws IOException {
+        if (failure != null) {
+            throw new IOException("User store is unavailable after a failed write", failure);
+        }
+    }
+
+    /** Makes the records added so far visible to readers, or only the durable ones once a flush has failed */
+    private void publish() {
+        view = new View(data, index, failure == null ? count : durableCount, capacity, sorted, sortedCount);
+    }
+
+    /**
+     * Appends users with the ids they already have, as when importing users.xml, and forces them all at once.
+     * Users whose id is already stored are skipped.
+     *
+     * @param users The users to append, in order
+     * @throws IOException if the files cannot grow
+     * @throws IllegalArgumentException if a field does not fit its slot; users before it are kept
+     */
+    void importUsers(List<User> users) throws IOException {
+        synchronized (this) {
+            // Size the index once for all users instead of doubling it repeatedly
+            int expected = (int) Math.min(MAX_RECORDS, (long) count + users.size());
+            if (expected > capacity / 2) {
+                rebuildIndex(indexCapacityFor(expected));
+            }
+            try {
+                for (User user : users) {
+                    if (new View(data, index, count, capacity, sorted, sortedCount)
+                            .lookupId(encode("Id", user.getId(), ID_LENGTH)) < 0) {
+                        append(user);
+                    }
+                }
+            } finally {
+                publish();
+            }
+        }
+        flush();
+    }
+
+    /**
+     * @return true once {@link #markImported} was called on the store, false for a new store or one
+     *         whose import did not complete
+     */
+    synchronized boolean isImported() {
+        return data.getInt(IMPORTED_OFFSET) != 0;
+    }
+
+    /**
+     * Records that the initial import has completed. The imported records are forced to disk first,
+     * so a store marked as imported always holds every imported user.
+     *
+     * @throws IOException if the store cannot be written
+     */
+    void markImported() throws IOException {
+        flush();
+        synchronized (flushLock) {
+            MappedByteBuffer written;
+            synchronized (this) {
+                written = data;
+            }
+            written.putInt(IMPORTED_OFFSET, 1);
+            written.force();
+        }
+    }
+
+    /**
+     * Writes the records and makes them visible; the returned future completes once a background flush
+     * has forced them to disk.
+     */
+    @Override
+    public synchronized CompletableFuture<List<User>> addUsers(Map<String, String> ipsByUsername)
+            throws IOException {
+        checkHealthy();
+        List<User> added = new ArrayList<>(ipsByUsername.size());
+        try {
+            for (Map.Entry<String, String> entry : ipsByUsername.entrySet()) {
+                User user = new User(UserManager.formatUserId(count + 1), entry.getKey(), entry.getValue());
+                append(user);
+                added.add(user);
+            }
+        } finally {
+            publish();
+        }
+        return commits.submit(added);
+    }
+
+    @Override
+    public List<User> getAllUsers() {
+        View current = view;
+        List<User> users = new ArrayList<>(current.count);
+        for (int record = 0; record < current.count; record++) {
+            users.add(current.read(record));
+        }
+        return users;
+    }
+
+    @Override
+    public User findByUsername(String username) {
+        View current = view;
+        int record = current.lookupUsername(encode("Username", username, Integer.MAX_VALUE));
+        return record < 0 ? null : current.read(record);
+    }
+
+    @Override
+    public User findById(String id) {
+        View current = view;
+        int record = current.lookupId(encode("Id", id, Integer.MAX_VALUE));
+        return record < 0 ? null : current.read(record);
+    }
+
+    @Override
+    public List<User> searchByPrefix(String prefix, int limit) {
+        return view.searchByPrefix(encode("Prefix", prefix, Integer.MAX_VALUE), limit);
+    }
+
+    @Override
+    public int size() {
+        return view.count;
+    }
+
+    /**
+     * Merges the records on disk into the sorted username file; records never move and the hash index
+     * is maintained on every add.
+     */
+    @Override
+    public void compact() throws IOException {
+        synchronized (flushLock) {
+            int durable = view.data.getInt(COUNT_OFFSET);
+            if (durable > sortedCount) {
+                mergeSorted(durable);
+            }
+        }
+    }
+
+    /**
+     * Forces both files and marks the index clean, so the next open uses it as is.
+     * A store whose flush failed is closed without writing, leaving the index to be rebuilt on the next open.
+     */
+    @Override
+    public void close() throws IOException {
+        commits.close();
+        synchronized (this) {
+            if (failure != null) {
+                dataChannel.close();
+                indexChannel.close();
+                sortedChannel.close();
+                return;
+            }
+        }
+        flush();
+        synchronized (this) {
+            if (!dataChannel.isOpen()) {
+                return;
+            }
+            index.putInt(INDEXED_COUNT_OFFSET, count);
+            index.force();
+            index.putInt(CLEAN_OFFSET, 1);
+            index.force();
+            dataChannel.close();
+            indexChannel.close();
+            sortedChannel.close();
+        }
+    }
+
+    /**
+     * Immutable view of the store for readers: the mappings and the count as of one add.
+     * Records below the count never change, and index entries for later records are skipped,
+     * so a view stays consistent while adds continue. Only absolute reads touch the shared buffers.
+     */
+    private static final class View {
+        /** Mapping of the record file */
+        private final ByteBuffer data;
+
+        /** Mapping of the index file */
+        private final ByteBuffer index;
+
+        /** Number of records visible through this view */
+        private final int count;
+
+        /** Number of slots in each index table */
+        private final int capacity;
+
+        /** Mapping of the sorted username file */
+        private final ByteBuffer sorted;
+
+        /** Number of records in the sorted username file; the records after it are searched by a scan */
+        private final int sortedCount;
+
+        View(ByteBuffer data, ByteBuffer index, int count, int capacity, ByteBuffer sorted, int sortedCount) {
+            this.data = data;
+            this.index = index;
+            this.count = count;
+            this.capacity = capacity;
+            this.sorted = sorted;
+            this.sortedCount = sortedCount;
+        }
+
+        /**
+         * Finds the records whose username starts with a prefix, in UsernameOrder.
+         *
+         * @param prefix The encoded prefix, as a 2-byte length and UTF-8 bytes
+         * @param limit The most users to return
+         * @return Up to limit matching users
+         */
+        List<User> searchByPrefix(ByteBuffer prefix, int limit) {
+            int low = 0;
+            int high = sortedCount;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                int field = recordOffset(sortedRecord(middle)) + USERNAME_OFFSET;
+                if (compareFolded(data, field, prefix, 0) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            List<User> found = new ArrayList<>();
+            for (int i = low; i < sortedCount && found.size() < limit; i++) {
+                int record = sortedRecord(i);
+                if (!hasPrefix(record, prefix)) {
+                    break;
+                }
+                found.add(read(record));
+            }
+
+            List<User> recent = new ArrayList<>();
+            for (int record = sortedCount; record < count; record++) {
+                if (hasPrefix(record, prefix)) {
+                    recent.add(read(record));
+                }
+            }
+            recent.sort(UsernameOrder.USERS);
+            return UsernameOrder.merge(found, recent, limit);
+        }
+
+        private int sortedRecord(int position) {
+            return sorted.getInt(SORTED_HEADER_LENGTH + 4 * position);
+        }
+
+        private boolean hasPrefix(int record, ByteBuffer prefix) {
+            int field = recordOffset(record) + USERNAME_OFFSET;
+            int length = prefix.getShort(0) & 0xFFFF;
+            if ((data.getShort(field) & 0xFFFF) < length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (UsernameOrder.fold(data.get(field + 2 + i) & 0xFF) != UsernameOrder.fold(prefix.get(2 + i) & 0xFF)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int lookupUsername(ByteBuffer key) {
+            return lookup(0, USERNAME_OFFSET, key);
+        }
+
+        int lookupId(ByteBuffer key) {
+            return lookup(capacity, ID_OFFSET, key);
+        }
+
+        /**
+         * Finds the record whose field equals a key.
+         *
+         * @param table 0 for the username table, capacity for the id table
+         * @param fieldOffset Offset of the field inside a record
+         * @param key The encoded key, as a 2-byte length and UTF-8 bytes
+         * @return The record number, or -1 if no record matches
+         */
+        private int lookup(int table, int fieldOffset, ByteBuffer key) {
+            int mask = capacity - 1;
+            for (int slot = hash(key, 0) & mask;; slot = (slot + 1) & mask) {
+                int entry = index.getInt(INDEX_HEADER_LENGTH + (table + slot) * 4);
+                if (entry == 0) {
+                    return -1;
+                }
+                // Entries past the count belong to a record whose add did not complete
+                if (entry - 1 < count && keyEquals(recordOffset(entry - 1) + fieldOffset, key)) {
+                    return entry - 1;
+                }
+            }
+        }
+
+        private boolean keyEquals(int field, ByteBuffer key) {
+            int length = key.getShort(0) & 0xFFFF;
+            if (length != (data.getShort(field) & 0xFFFF)) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (data.get(field + 2 + i) != key.get(2 + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        User read(int record) {
+            int base = recordOffset(record);
+            return new User(decode(base + ID_OFFSET), decode(base + USERNAME_OFFSET), decode(base + IP_OFFSET));
+        }
+
+        private String decode(int field) {
+            byte[] bytes = new byte[data.getShort(field) & 0xFFFF];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = data.get(field + 2 + i);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
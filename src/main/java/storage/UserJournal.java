@@ -0,0 +1,255 @@
+/**
+ * UserJournal class is an append-only log of added users, kept next to the XML snapshot.
+ * Each record is [int length][int CRC32][id, username, ip as modified UTF-8], so appending a user costs
+ * the same however many users exist. Appended records are buffered in memory and written to the file
+ * by the next sync, so a burst of appends costs one write and one fsync: a sync writes and forces
+ * every record appended so far, and writers waiting for the same records find them already synced.
+ * Compaction folds the journal into the snapshot and discards the records it now contains.
+ * A record torn by a crash is detected by its length or checksum and cut off on replay.
+ */
+package storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import storage.UserManager.User;
+
+final class UserJournal implements AutoCloseable {
+    /** Size of the length and checksum in front of every record */
+    private static final int HEADER_LENGTH = 8;
+
+    /** Longest record accepted on replay; longer lengths mean a damaged file */
+    private static final int MAX_RECORD_LENGTH = 3 * 65535 + 6;
+
+    /** The journal file */
+    private final Path file;
+
+    /** Serializes forces, so concurrent writers wait for one force instead of each issuing their own */
+    private final Object syncLock = new Object();
+
+    /** Open journal file, positioned at its end */
+    private FileChannel channel;
+
+    /** Records appended but not yet written to the file */
+    private final ByteArrayOutputStream buffered = new ByteArrayOutputStream();
+
+    /** Bytes ever appended, including discarded ones; positions returned to writers are in these terms */
+    private long written;
+
+    /** Bytes appended before the first byte still in the file */
+    private long discarded;
+
+    /** Bytes known to be on disk, in the same terms as written */
+    private long synced;
+
+    /** Number of forces issued */
+    private long syncCount;
+
+    /**
+     * Opens a journal, creating the file if it does not exist.
+     *
+     * @param file The journal file
+     * @throws IOException if the file cannot be opened
+     */
+    UserJournal(Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Reads every intact record and positions the journal after the last one.
+     * A torn or damaged tail is truncated.
+     *
+     * @return The users in the order they were appended
+     * @throws IOException if the file cannot be read
+     */
+    synchronized List<User> replay() throws IOException {
+        List<User> users = new ArrayList<>();
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        while (position + HEADER_LENGTH <= size) {
+            header.clear();
+            readFully(header, position);
+            int length = header.getInt(0);
+            int checksum = header.getInt(4);
+            if (length < 0 || length > MAX_RECORD_LENGTH || position + HEADER_LENGTH + length > size) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate(length);
+            readFully(body, position + HEADER_LENGTH);
+            if ((int) crc(body.array()) != checksum) {
+                break;
+            }
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(body.array()))) {
+                users.add(new User(in.readUTF(), in.readUTF(), in.readUTF()));
+            }
+            position += HEADER_LENGTH + length;
+        }
+        if (position < size) {
+            channel.truncate(position);
+            channel.force(false);
+        }
+        channel.position(position);
+        written = position;
+        discarded = 0;
+        synced = position;
+        return users;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * Appends a user record to the buffer without writing it to the file.
+     *
+     * @param user The user to append
+     * @return The journal position after the record, to pass to sync
+     * @throws IOException if the record cannot be encoded
+     */
+    synchronized long append(User user) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeUTF(user.getId());
+            out.writeUTF(user.getUsername());
+            out.writeUTF(user.getIp());
+        }
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        record.putInt(0, record.limit() - HEADER_LENGTH);
+        record.putInt(4, (int) crc(record.array(), HEADER_LENGTH, record.limit() - HEADER_LENGTH));
+        buffered.write(record.array(), 0, record.limit());
+        written += record.limit();
+        return written;
+    }
+
+    /**
+     * Writes the buffered records to the file; called holding the lock.
+     */
+    private void writeBuffered() throws IOException {
+        if (buffered.size() == 0) {
+            return;
+        }
+        ByteBuffer records = ByteBuffer.wrap(buffered.toByteArray());
+        while (records.hasRemaining()) {
+            channel.write(records);
+        }
+        buffered.reset();
+    }
+
+    /**
+     * Waits until everything up to a position is on disk, writing and forcing the file if no other writer has.
+     *
+     * @param position A position returned by append
+     * @throws IOException if the file cannot be forced
+     */
+    void sync(long position) throws IOException {
+        synchronized (syncLock) {
+            if (synced >= position) {
+                return;
+            }
+            long target;
+            FileChannel current;
+            synchronized (this) {
+                writeBuffered();
+                target = written;
+                current = channel;
+            }
+            current.force(false);
+            syncCount++;
+            synced = target;
+        }
+    }
+
+    /** @return The journal position after the last appended record */
+    synchronized long getPosition() {
+        return written;
+    }
+
+    /** @return true if the file holds records not yet folded into the snapshot */
+    synchronized boolean isEmpty() {
+        return written == discarded;
+    }
+
+    /** @return The number of forces issued since opening */
+    long getSyncCount() {
+        synchronized (syncLock) {
+            return syncCount;
+        }
+    }
+
+    /**
+     * Discards the records before a position, which a snapshot now contains.
+     * The records after it are copied to a new file that replaces the journal atomically.
+     *
+     * @param position A position returned by append or getPosition
+     * @throws IOException if the journal cannot be rewritten
+     */
+    void discardBefore(long position) throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (position <= discarded) {
+                    return;
+                }
+                writeBuffered();
+                Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+                try (FileChannel tail = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    long from = position - discarded;
+                    long count = written - position;
+                    long copied = 0;
+                    while (copied < count) {
+                        copied += channel.transferTo(from + copied, count - copied, tail);
+                    }
+                    tail.force(false);
+                }
+                channel.close();
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                channel.position(channel.size());
+                discarded = position;
+                synced = Math.max(synced, written);
+            }
+        }
+    }
+
+    /**
+     * Writes and forces outstanding records to disk and closes the file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        writeBuffered();
+        channel.force(false);
+        channel.close();
+    }
+
+    private static long crc(byte[] data) {
+        return crc(data, 0, data.length);
+    }
+
+    private static long crc(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return crc.getValue();
+    }
+}
@@ -1,46 +1,84 @@
 /**
- * UserManager class manages user data persistence using XML storage.
+ * UserManager class manages user data persistence.
  * Implements the Singleton pattern to ensure a single instance manages user data.
  * Handles user creation, retrieval, and storage operations.
+ * The users are kept by a UserStore chosen with -Dintercom.users.store:
+ * xml (the default) keeps users.xml plus a journal of new users and holds all users on the heap,
+ * indexed by username and id; mapped keeps a binary record file with an on-disk hash index,
+ * read through memory-mapped buffers, so startup does not depend on the number of users.
+ * The first time the mapped store is used, it imports users.xml and its journal.
+ * A background task periodically compacts the store.
+ * Both stores serve reads from an immutable snapshot without locking and serialize adds,
+ * so the methods can be called from any number of threads.
  */
 package storage;
 
-import java.io.File;
-import java.util.ArrayList;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class UserManager {
+    /** System property choosing the user store, xml or mapped */
+    public static final String STORE_PROPERTY = "intercom.users.store";
+    
+    /** Directory holding the user files */
+    private static final String USERS_DATA_DIRECTORY = "src/main/resources/data";
+    
     /** Path to the XML file storing user data */
-    private static final String USERS_XML_PATH = "src/main/resources/data/users.xml";
+    private static final String USERS_XML_PATH = USERS_DATA_DIRECTORY + "/users.xml";
+    
+    /** Path to the journal of users added since the last snapshot */
+    private static final String USERS_JOURNAL_PATH = USERS_DATA_DIRECTORY + "/users.journal";
     
-    /** XML document containing user data */
-    private Document document;
+    /** How often the store is compacted */
+    private static final long COMPACTION_INTERVAL_SECONDS = 60;
+    
+    /** The store holding the users */
+    private UserStore store;
+    
+    /** Background thread running the periodic compaction */
+    private final ScheduledExecutorService compactor;
     
     /** Singleton instance of UserManager */
     private static UserManager instance;
 
     /**
      * Private constructor to enforce singleton pattern.
-     * Initializes the XML document on creation.
+     * Opens the store on creation, schedules its compaction and closes it when the JVM exits.
      */
     private UserManager() {
         try {
-            loadDocument();
+            store = openStore();
         } catch (Exception e) {
             e.printStackTrace();
         }
+        compactor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "user-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(() -> {
+            try {
+                compact();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, COMPACTION_INTERVAL_SECONDS, COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                if (store != null) {
+                    store.close();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, "user-store-close"));
     }
 
     /**
@@ -57,99 +95,106 @@ public class UserManager {
     }
 
     /**
-     * Loads the XML document from file or creates a new one if it doesn't exist.
+     * Opens the store named by the store property.
+     * A mapped store that doesn't exist yet is created from users.xml and its journal, and is marked
+     * as imported only once every user is on disk. A store whose import was interrupted, by a crash or
+     * a user that doesn't fit a record, is imported again on the next start, skipping the users it holds.
      * 
-     * @throws Exception if there's an error loading or creating the document
+     * @return The open store
+     * @throws Exception if the store cannot be opened or the property names no store
      */
-    private void loadDocument() throws Exception {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        File file = new File(USERS_XML_PATH);
-        
-        if (file.exists()) {
-            document = builder.parse(file);
-        } else {
-            document = builder.newDocument();
-            Element root = document.createElement("users");
-            document.appendChild(root);
-            saveDocument();
+    private static UserStore openStore() throws Exception {
+        String name = System.getProperty(STORE_PROPERTY, "xml").toLowerCase(Locale.ROOT);
+        Path xml = Paths.get(USERS_XML_PATH);
+        Path journal = Paths.get(USERS_JOURNAL_PATH);
+        switch (name) {
+            case "xml":
+                return new XmlUserStore(xml, journal);
+            case "mapped":
+                MappedUserStore store = new MappedUserStore(Paths.get(USERS_DATA_DIRECTORY));
+                try {
+                    if (!store.isImported()) {
+                        List<User> users;
+                        try (XmlUserStore source = new XmlUserStore(xml, journal)) {
+                            users = source.getAllUsers();
+                        }
+                        store.importUsers(users);
+                        store.markImported();
+                    }
+                } catch (Exception e) {
+                    try {
+                        store.close();
+                    } catch (Exception closeFailure) {
+                        e.addSuppressed(closeFailure);
+                    }
+                    throw e;
+                }
+                return store;
+            default:
+                throw new IllegalArgumentException("Unknown " + STORE_PROPERTY + ": " + name);
         }
     }
 
     /**
-     * Saves the current XML document to file with proper formatting.
+     * Compacts the store, e.g. folds the XML journal into a fresh snapshot.
+     * Runs periodically in the background; users can be added while it runs.
      * 
-     * @throws Exception if there's an error saving the document
+     * @throws Exception if the store cannot be rewritten
      */
-    private void saveDocument() throws Exception {
-        TransformerFactory transformerFactory = TransformerFactory.newInstance();
-        Transformer transformer = transformerFactory.newTransformer();
-        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-        transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-        
-        DOMSource source = new DOMSource(document);
-        StreamResult result = new StreamResult(new File(USERS_XML_PATH));
-        transformer.transform(source, result);
+    public void compact() throws Exception {
+        store.compact();
     }
 
     /**
-     * Adds a new user to the XML storage.
-     * Creates a new user element with ID, username, and IP address.
+     * Adds a new user to the storage without waiting for the disk.
+     * The user gets the next ID and can be looked up as soon as this returns; it is written in the background,
+     * so a burst of additions shares one disk sync and none waits longer than a few milliseconds plus that sync.
+     * If the write fails, the user can no longer be looked up and further additions fail until the storage
+     * is reopened.
      * 
      * @param username The username of the new user
      * @param ip The IP address of the new user
-     * @throws Exception if there's an error adding the user or saving the document
+     * @return A future completed with the new user once it is on disk,
+     *         or completed exceptionally if it could not be written
+     * @throws Exception if there's an error adding the user
      */
-    public void addUser(String username, String ip) throws Exception {
-        Element user = document.createElement("user");
-        
-        Element idElement = document.createElement("id");
-        idElement.appendChild(document.createTextNode(generateUserId()));
-        
-        Element usernameElement = document.createElement("username");
-        usernameElement.appendChild(document.createTextNode(username));
-        
-        Element ipElement = document.createElement("ip");
-        ipElement.appendChild(document.createTextNode(ip));
-        
-        user.appendChild(idElement);
-        user.appendChild(usernameElement);
-        user.appendChild(ipElement);
-        
-        document.getDocumentElement().appendChild(user);
-        saveDocument();
+    public CompletableFuture<User> addUser(String username, String ip) throws Exception {
+        return store.addUser(username, ip);
     }
 
     /**
-     * Generates a unique user ID based on the current number of users.
+     * Adds many users at once, e.g. when importing accounts, as a single write to disk.
+     * The users get consecutive IDs in the iteration order of the map and can be looked up as soon as this returns.
+     * 
+     * @param ipsByUsername The IP address of each new user, by username
+     * @return A future completed with the new users once all are on disk,
+     *         or completed exceptionally if they could not be written
+     * @throws Exception if there's an error adding the users
+     */
+    public CompletableFuture<List<User>> addUsers(Map<String, String> ipsByUsername) throws Exception {
+        return store.addUsers(ipsByUsername);
+    }
+
+    /**
+     * Formats a user ID from the number of the user.
      * IDs are formatted as three-digit numbers (e.g., "001", "002").
      * 
-     * @return A new unique user ID
+     * @param number The number of the user, counting from 1
+     * @return The user ID
      */
-    private String generateUserId() {
-        NodeList users = document.getElementsByTagName("user");
-        return String.format("%03d", users.getLength() + 1);
+    static String formatUserId(int number) {
+        // Same as String.format("%03d", number), without parsing a format on every add
+        String digits = Integer.toString(number);
+        return digits.length() >= 3 ? digits : "000".substring(digits.length()) + digits;
     }
 
     /**
-     * Retrieves all users from the XML storage.
+     * Retrieves all users from the storage.
      * 
      * @return A list of all User objects
      */
     public List<User> getAllUsers() {
-        List<User> users = new ArrayList<>();
-        NodeList userNodes = document.getElementsByTagName("user");
-        
-        for (int i = 0; i < userNodes.getLength(); i++) {
-            Element userElement = (Element) userNodes.item(i);
-            String id = userElement.getElementsByTagName("id").item(0).getTextContent();
-            String username = userElement.getElementsByTagName("username").item(0).getTextContent();
-            String ip = userElement.getElementsByTagName("ip").item(0).getTextContent();
-            
-            users.add(new User(id, username, ip));
-        }
-        
-        return users;
+        return store.getAllUsers();
     }
 
     /**
@@ -159,20 +204,29 @@ public class UserManager {
      * @return The User object if found, null otherwise
      */
     public User findUserByUsername(String username) {
-        NodeList users = document.getElementsByTagName("user");
-        
-        for (int i = 0; i < users.getLength(); i++) {
-            Element user = (Element) users.item(i);
-            String currentUsername = user.getElementsByTagName("username").item(0).getTextContent();
-            
-            if (currentUsername.equals(username)) {
-                String id = user.getElementsByTagName("id").item(0).getTextContent();
-                String ip = user.getElementsByTagName("ip").item(0).getTextContent();
-                return new User(id, username, ip);
-            }
-        }
-        
-        return null;
+        return store.findByUsername(username);
+    }
+
+    /**
+     * Finds users whose username starts with a prefix, for search as you type.
+     * Case is ignored for ASCII letters; the users come in username order.
+     * 
+     * @param prefix The start of the username; an empty prefix matches every user
+     * @param limit The most users to return
+     * @return Up to limit matching users
+     */
+    public List<User> searchByPrefix(String prefix, int limit) {
+        return store.searchByPrefix(prefix, limit);
+    }
+
+    /**
+     * Finds a user by their unique identifier.
+     * 
+     * @param id The identifier to search for
+     * @return The User object if found, null otherwise
+     */
+    public User findUserById(String id) {
+        return store.findById(id);
     }
 
     /**
@@ -0,0 +1,95 @@
+/**
+ * UserStore interface is the storage backend behind UserManager.
+ * A store assigns ids, keeps users durably and answers lookups by username and id; UserManager
+ * chooses the implementation with the intercom.users.store system property.
+ * Implementations are thread-safe.
+ */
+package storage;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import storage.UserManager.User;
+
+interface UserStore extends AutoCloseable {
+    /**
+     * Adds a user under the next free id. The user is visible to lookups when this returns and is written
+     * to disk in the background, together with the other users added around the same time.
+     * If that write fails, the store fails as described for {@link #addUsers}.
+     *
+     * @param username The username of the new user
+     * @param ip The IP address of the new user
+     * @return A future completed with the stored user once it is on disk,
+     *         or completed exceptionally if it could not be written
+     * @throws IOException if the user cannot be written, or if an earlier write to disk failed
+     */
+    default CompletableFuture<User> addUser(String username, String ip) throws IOException {
+        return addUsers(Collections.singletonMap(username, ip)).thenApply(users -> users.get(0));
+    }
+
+    /**
+     * Adds users under the next free ids, in the iteration order of the map, as one write to disk.
+     * The users are visible to lookups when this returns.
+     * If the write to disk fails, every user not yet on disk is removed from lookups, getAllUsers and size
+     * before the future fails, so nothing is found that a restart would lose, and the store becomes
+     * unavailable: later adds throw IOException until it is closed and reopened. A removed user may still be
+     * found after reopening if its write reached the disk after all.
+     *
+     * @param ipsByUsername The IP address of each new user, by username
+     * @return A future completed with the stored users once all are on disk,
+     *         or completed exceptionally if they could not be written
+     * @throws IOException if a user cannot be written, the users before it being added, or if an earlier
+     *                     write to disk failed
+     * @throws IllegalArgumentException if a user cannot be stored; the users before it are added
+     */
+    CompletableFuture<List<User>> addUsers(Map<String, String> ipsByUsername) throws IOException;
+
+    /** @return All users in the order they were added */
+    List<User> getAllUsers();
+
+    /**
+     * Finds a user by username; if a username was stored twice, the first user wins.
+     *
+     * @param username The username to search for
+     * @return The user, or null if none has the username
+     */
+    User findByUsername(String username);
+
+    /**
+     * Finds a user by id.
+     *
+     * @param id The identifier to search for
+     * @return The user, or null if none has the id
+     */
+    User findById(String id);
+
+    /**
+     * Finds users whose username starts with a prefix, ignoring the case of ASCII letters.
+     *
+     * @param prefix The start of the username; an empty prefix matches every user
+     * @param limit The most users to return
+     * @return Up to limit matching users, in UsernameOrder
+     */
+    List<User> searchByPrefix(String prefix, int limit);
+
+    /** @return The number of stored users */
+    int size();
+
+    /**
+     * Reorganizes the files of the store in the background; does nothing if the store has nothing to do.
+     *
+     * @throws Exception if the files cannot be rewritten
+     */
+    void compact() throws Exception;
+
+    /**
+     * Writes everything outstanding, completing the futures of pending adds, and closes the files of the store.
+     *
+     * @throws IOException if the files cannot be written
+     */
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,126 @@
+/**
+ * UserStoreBenchmark class is a command-line benchmark of loading users.xml.
+ * For every size it generates a users file and loads it twice: through a DOM, as UserManager used to,
+ * keeping the document alive as it did, and through the StAX loader UserManager uses now.
+ * It reports the load time, the bytes allocated while loading and the heap still held afterwards.
+ * Large sizes need a large heap for the DOM path, e.g. -Xmx4g for a million users.
+ *
+ * Usage: java storage.UserStoreBenchmark [users...]
+ */
+package storage;
+
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import storage.UserManager.User;
+
+public final class UserStoreBenchmark {
+    /** Number of times each loader runs before measuring, to warm up the JIT */
+    private static final int WARMUP_RUNS = 3;
+
+    /** Users in the warm-up file */
+    private static final int WARMUP_USERS = 10000;
+
+    private UserStoreBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args Optional user counts of the files to load
+     * @throws Exception if the benchmark cannot run
+     */
+    public static void main(String[] args) throws Exception {
+        int[] sizes = args.length > 0 ? new int[args.length] : new int[] { 10000, 100000, 1000000 };
+        for (int i = 0; i < args.length; i++) {
+            sizes[i] = Integer.parseInt(args[i]);
+        }
+
+        Path warmup = generate(WARMUP_USERS);
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            loadDom(warmup);
+            UserXml.read(warmup);
+        }
+        Files.delete(warmup);
+
+        System.out.printf("%-6s %9s %10s %10s %14s %12s%n", "loader", "users", "file MB", "ms",
+                "allocated MB", "retained MB");
+        for (int size : sizes) {
+            Path file = generate(size);
+            try {
+                double fileMegabytes = Files.size(file) / 1e6;
+                for (String loader : new String[] { "dom", "stax" }) {
+                    System.gc();
+                    long heapBefore = usedHeap();
+                    long allocatedBefore = allocatedBytes();
+                    long start = System.nanoTime();
+                    Object loaded = loader.equals("dom") ? loadDom(file) : UserXml.read(file);
+                    long elapsed = System.nanoTime() - start;
+                    long allocated = allocatedBytes() - allocatedBefore;
+                    System.gc();
+                    long retained = usedHeap() - heapBefore;
+                    System.out.printf("%-6s %9d %10.1f %10.1f %14.1f %12.1f%n", loader, size, fileMegabytes,
+                            elapsed / 1e6, allocated / 1e6, retained / 1e6);
+                    // Keep the result reachable until its heap was measured
+                    if (loaded == null) {
+                        throw new IllegalStateException("Nothing loaded");
+                    }
+                }
+            } finally {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Loads users the way UserManager did before streaming: parse a DOM, then walk it.
+     *
+     * @return The document and the users, both kept as UserManager kept them
+     */
+    private static Object[] loadDom(Path file) throws Exception {
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file.toFile());
+        NodeList userNodes = document.getElementsByTagName("user");
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < userNodes.getLength(); i++) {
+            Element user = (Element) userNodes.item(i);
+            users.add(new User(user.getElementsByTagName("id").item(0).getTextContent(),
+                    user.getElementsByTagName("username").item(0).getTextContent(),
+                    user.getElementsByTagName("ip").item(0).getTextContent()));
+        }
+        return new Object[] { document, users };
+    }
+
+    private static Path generate(int size) throws Exception {
+        List<User> users = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            users.add(new User(String.format("%03d", i + 1), "user" + i,
+                    "10." + (i >> 16 & 255) + "." + (i >> 8 & 255) + "." + (i & 255)));
+        }
+        Path file = Files.createTempFile("users", ".xml");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            UserXml.write(users, out);
+        }
+        return file;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * UserStoreConverter class is a command-line tool moving users between users.xml and the mapped user store.
+ * Importing appends the users of an XML file to the mapped store in a directory, creating it if needed,
+ * skips users whose id is already stored, and marks the store as imported so UserManager does not import
+ * its own users.xml into it. Exporting writes every user of a mapped store to an XML file,
+ * replacing it atomically. Neither should run while the application is using the same files.
+ *
+ * Usage: java storage.UserStoreConverter import users.xml directory
+ *        java storage.UserStoreConverter export directory users.xml
+ */
+package storage;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import storage.UserManager.User;
+
+public final class UserStoreConverter {
+    private UserStoreConverter() {
+    }
+
+    /**
+     * Runs the conversion.
+     *
+     * @param args import or export, then the source and the target
+     * @throws Exception if a file cannot be read or written
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3 || !(args[0].equals("import") || args[0].equals("export"))) {
+            System.err.println("Usage: UserStoreConverter import <users.xml> <directory>");
+            System.err.println("       UserStoreConverter export <directory> <users.xml>");
+            System.exit(2);
+        }
+        Path source = Paths.get(args[1]);
+        Path target = Paths.get(args[2]);
+        long start = System.nanoTime();
+        int converted;
+        if (args[0].equals("import")) {
+            List<User> users = UserXml.read(source);
+            try (MappedUserStore store = new MappedUserStore(target)) {
+                int before = store.size();
+                store.importUsers(users);
+                store.markImported();
+                converted = store.size() - before;
+            }
+        } else {
+            if (!MappedUserStore.exists(source)) {
+                System.err.println("No user store in " + source);
+                System.exit(1);
+            }
+            List<User> users;
+            try (MappedUserStore store = new MappedUserStore(source)) {
+                users = store.getAllUsers();
+            }
+            XmlUserStore.saveSnapshot(target, users);
+            converted = users.size();
+        }
+        System.out.printf("%sed %d users in %.1f ms%n", args[0], converted, (System.nanoTime() - start) / 1e6);
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * UserStoreStress class is a command-line stress test of the user stores under concurrent use.
+ * For each store it loads a number of users, then measures lookups per second with a growing number of
+ * reader threads, first alone and then while writer threads keep adding users. It checks that every lookup
+ * finds the right user, that a user is found by any thread once addUser has returned, that every add's
+ * future completes, and that afterwards every added user is stored exactly once under a distinct id.
+ * The adds per second count adds whose future has completed, i.e. users on disk.
+ * It exits with status 1 if a check fails.
+ *
+ * Usage: java storage.UserStoreStress [users] [writers] [adds per writer] [seconds per round]
+ */
+package storage;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.Stream;
+
+import storage.UserManager.User;
+
+public final class UserStoreStress {
+    /** Failed checks, over all stores */
+    private static final AtomicLong FAILURES = new AtomicLong();
+
+    private UserStoreStress() {
+    }
+
+    /**
+     * Runs the stress test.
+     *
+     * @param args Optional user count, writer threads, adds per writer and seconds per round
+     * @throws Exception if the stores cannot be created
+     */
+    public static void main(String[] args) throws Exception {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int writers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int adds = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        double seconds = args.length > 3 ? Double.parseDouble(args[3]) : 2;
+        List<User> initial = new ArrayList<>(users);
+        for (int i = 0; i < users; i++) {
+            initial.add(new User(UserManager.formatUserId(i + 1), "user" + i, "10.0." + (i >> 8 & 255) + "." + (i & 255)));
+        }
+
+        List<Integer> readerCounts = new ArrayList<>();
+        for (int readers = 1; readers < Runtime.getRuntime().availableProcessors(); readers *= 2) {
+            readerCounts.add(readers);
+        }
+        readerCounts.add(Runtime.getRuntime().availableProcessors());
+
+        System.out.printf("%-7s %8s %8s %16s %10s%n", "store", "readers", "writers", "lookups/s", "adds/s");
+        for (String name : new String[] { "xml", "mapped" }) {
+            Path directory = Files.createTempDirectory("userstress");
+            try (UserStore store = open(name, directory, initial)) {
+                for (int readers : readerCounts) {
+                    run(name, store, users, readers, 0, 0, seconds);
+                }
+                for (int readers : readerCounts) {
+                    run(name, store, users, readers, writers, adds, seconds);
+                }
+                verify(name, store);
+            } finally {
+                try (Stream<Path> files = Files.walk(directory)) {
+                    files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+                }
+            }
+        }
+        System.out.println(FAILURES.get() == 0 ? "All checks passed" : FAILURES.get() + " checks failed");
+        System.exit(FAILURES.get() == 0 ? 0 : 1);
+    }
+
+    private static UserStore open(String name, Path directory, List<User> initial) throws Exception {
+        if (name.equals("mapped")) {
+            MappedUserStore store = new MappedUserStore(directory);
+            store.importUsers(initial);
+            return store;
+        }
+        Path xml = directory.resolve("users.xml");
+        try (OutputStream out = Files.newOutputStream(xml)) {
+            UserXml.write(initial, out);
+        }
+        return new XmlUserStore(xml, directory.resolve("users.journal"));
+    }
+
+    /**
+     * Runs readers, and writers if any, until the writers are done or the round time is up.
+     * Readers look up loaded users by username and id, and users the writers have finished adding.
+     */
+    private static void run(String name, UserStore store, int users, int readers, int writers, int adds,
+            double seconds) throws InterruptedException {
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicLong lookups = new AtomicLong();
+        AtomicReferenceArray<String> added = new AtomicReferenceArray<>(Math.max(1, writers * adds));
+        AtomicInteger addedCount = new AtomicInteger();
+        AtomicInteger durableCount = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        String round = Long.toString(System.nanoTime(), 36);
+
+        for (int r = 0; r < readers; r++) {
+            threads.add(new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long count = 0;
+                await(start);
+                while (!stop.get()) {
+                    int i = random.nextInt(users);
+                    User user = store.findByUsername("user" + i);
+                    check(user != null && user.getId().equals(UserManager.formatUserId(i + 1)),
+                            name + ": wrong user for user" + i + ": " + describe(user));
+                    user = store.findById(UserManager.formatUserId(i + 1));
+                    check(user != null && user.getUsername().equals("user" + i),
+                            name + ": wrong user for id " + (i + 1) + ": " + describe(user));
+                    int visible = addedCount.get();
+                    if (visible > 0) {
+                        String username = added.get(random.nextInt(visible));
+                        // The slot may not be written yet by the writer that claimed it
+                        if (username != null) {
+                            check(store.findByUsername(username) != null, name + ": added user not found: " + username);
+                            count++;
+                        }
+                    }
+                    count += 2;
+                }
+                lookups.addAndGet(count);
+            }, "reader-" + r));
+        }
+        for (int w = 0; w < writers; w++) {
+            int writer = w;
+            threads.add(new Thread(() -> {
+                List<CompletableFuture<User>> futures = new ArrayList<>();
+                await(start);
+                for (int i = 0; i < adds && !stop.get(); i++) {
+                    String username = "stress-" + round + "-" + writer + "-" + i;
+                    try {
+                        futures.add(store.addUser(username, "192.168.0.1"));
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        check(false, name + ": add failed: " + username);
+                        continue;
+                    }
+                    check(store.findByUsername(username) != null, name + ": own user not found: " + username);
+                    added.set(addedCount.getAndIncrement(), username);
+                }
+                for (CompletableFuture<User> future : futures) {
+                    try {
+                        future.join();
+                        durableCount.incrementAndGet();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                        check(false, name + ": add not written");
+                    }
+                }
+            }, "writer-" + w));
+        }
+
+        threads.forEach(Thread::start);
+        long begin = System.nanoTime();
+        start.countDown();
+        long deadline = begin + (long) (seconds * 1e9);
+        while (System.nanoTime() < deadline && (writers == 0 || addedCount.get() < writers * adds)) {
+            Thread.sleep(10);
+        }
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+        System.out.printf("%-7s %8d %8d %16.0f %10.0f%n", name, readers, writers, lookups.get() / elapsed,
+                durableCount.get() / elapsed);
+    }
+
+    /**
+     * Checks that the ids are distinct and that every user is found by its username and id.
+     */
+    private static void verify(String name, UserStore store) {
+        List<User> all = store.getAllUsers();
+        check(all.size() == store.size(), name + ": " + all.size() + " users listed but size is " + store.size());
+        Set<String> ids = new HashSet<>();
+        Set<String> usernames = new HashSet<>();
+        for (User user : all) {
+            check(ids.add(user.getId()), name + ": duplicate id " + user.getId());
+            check(usernames.add(user.getUsername()), name + ": duplicate username " + user.getUsername());
+            User byId = store.findById(user.getId());
+            check(byId != null && byId.getUsername().equals(user.getUsername()), name + ": id lookup failed for "
+                    + user.getId());
+        }
+        System.out.printf("%-7s %d users, %d distinct ids%n", name, all.size(), ids.size());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void check(boolean condition, String failure) {
+        if (!condition && FAILURES.incrementAndGet() <= 10) {
+            System.err.println(failure);
+        }
+    }
+
+    private static String describe(User user) {
+        return user == null ? "none" : user.getId() + "/" + user.getUsername();
+    }
+}
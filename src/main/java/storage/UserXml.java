@@ -0,0 +1,135 @@
+/**
+ * UserXml class reads and writes the users.xml snapshot by streaming it with StAX.
+ * Reading turns each user element straight into a User without building a DOM, so loading needs
+ * memory only for the users themselves and the first user is available as soon as it is parsed;
+ * writing streams the users out the same way. The format is the one UserManager has always used:
+ * a users element holding user elements with id, username and ip children.
+ */
+package storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import storage.UserManager.User;
+
+final class UserXml {
+    /** Factory for stream readers; thread-safe once configured */
+    private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+
+    /** Factory for stream writers; thread-safe once configured */
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    private UserXml() {
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        // The file never has a DTD, so do not resolve one or any external entity
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    /**
+     * Reads every user from a snapshot file.
+     *
+     * @param file The users.xml file
+     * @return The users in document order
+     * @throws IOException if the file cannot be read
+     * @throws XMLStreamException if the file is not well-formed or a user lacks a field
+     */
+    static List<User> read(Path file) throws IOException, XMLStreamException {
+        try (InputStream in = Files.newInputStream(file)) {
+            XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(in);
+            try {
+                return read(reader);
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    private static List<User> read(XMLStreamReader reader) throws XMLStreamException {
+        List<User> users = new ArrayList<>();
+        String id = null;
+        String username = null;
+        String ip = null;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                switch (reader.getLocalName()) {
+                    case "user":
+                        id = null;
+                        username = null;
+                        ip = null;
+                        break;
+                    case "id":
+                        id = reader.getElementText();
+                        break;
+                    case "username":
+                        username = reader.getElementText();
+                        break;
+                    case "ip":
+                        ip = reader.getElementText();
+                        break;
+                    default:
+                        break;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("user")) {
+                if (id == null || username == null || ip == null) {
+                    throw new XMLStreamException("User without id, username or ip", reader.getLocation());
+                }
+                users.add(new User(id, username, ip));
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Writes users to a stream as a snapshot, indented by two spaces per level.
+     *
+     * @param users The users to write, in order
+     * @param out The stream to write to; it is not closed
+     * @throws XMLStreamException if the document cannot be written
+     */
+    static void write(List<User> users, OutputStream out) throws XMLStreamException {
+        XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(out, "UTF-8");
+        writer.writeStartDocument("UTF-8", "1.0");
+        writer.writeCharacters("\n");
+        writer.writeStartElement("users");
+        for (User user : users) {
+            writer.writeCharacters("\n  ");
+            writer.writeStartElement("user");
+            writeField(writer, "id", user.getId());
+            writeField(writer, "username", user.getUsername());
+            writeField(writer, "ip", user.getIp());
+            writer.writeCharacters("\n  ");
+            writer.writeEndElement();
+        }
+        writer.writeCharacters("\n");
+        writer.writeEndElement();
+        writer.writeCharacters("\n");
+        writer.writeEndDocument();
+        writer.flush();
+        writer.close();
+    }
+
+    private static void writeField(XMLStreamWriter writer, String name, String value) throws XMLStreamException {
+        writer.writeCharacters("\n    ");
+        writer.writeStartElement(name);
+        writer.writeCharacters(value);
+        writer.writeEndElement();
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * UsernameOrder class defines the order of usernames used by prefix search.
+ * Usernames are compared character by character with ASCII letters folded to lower case, so "al"
+ * matches both "alice" and "Alan" and they sort together; other characters compare by their value.
+ * Usernames that differ only in the case of ASCII letters compare as equal.
+ */
+package storage;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import storage.UserManager.User;
+
+final class UsernameOrder {
+    /** Orders users by username */
+    static final Comparator<User> USERS = (first, second) -> compare(first.getUsername(), second.getUsername());
+
+    private UsernameOrder() {
+    }
+
+    /**
+     * @param c A character or a byte of UTF-8
+     * @return The character with an ASCII upper-case letter folded to lower case
+     */
+    static int fold(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    /**
+     * Compares two usernames.
+     *
+     * @return A negative number, zero or a positive number as the first sorts before, with or after the second
+     */
+    static int compare(String first, String second) {
+        int length = Math.min(first.length(), second.length());
+        for (int i = 0; i < length; i++) {
+            int difference = fold(first.charAt(i)) - fold(second.charAt(i));
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return first.length() - second.length();
+    }
+
+    /**
+     * @return true if the username starts with the prefix, folding ASCII letters
+     */
+    static boolean hasPrefix(String username, String prefix) {
+        if (username.length() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (fold(username.charAt(i)) != fold(prefix.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Merges two lists in UsernameOrder, the first list winning ties.
+     *
+     * @return Up to limit users from both lists, in UsernameOrder
+     */
+    static List<User> merge(List<User> first, List<User> second, int limit) {
+        if (second.isEmpty()) {
+            return first;
+        }
+        List<User> merged = new ArrayList<>(Math.min(limit, first.size() + second.size()));
+        int i = 0;
+        int j = 0;
+        while (merged.size() < limit && (i < first.size() || j < second.size())) {
+            if (j == second.size()
+                    || i < first.size() && USERS.compare(first.get(i), second.get(j)) <= 0) {
+                merged.add(first.get(i++));
+            } else {
+                merged.add(second.get(j++));
+            }
+        }
+        return merged;
+    }
+}
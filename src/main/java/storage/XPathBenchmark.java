@@ -0,0 +1,153 @@
+/**
+ * XPathBenchmark class is a command-line benchmark of XPath queries on a users document.
+ * For every document size it looks up users' IDs by username in two ways: the way XPathUtils used to,
+ * formatting the username into the expression and evaluating the string with one shared XPath, and through
+ * XPathUtils now, with the compiled expression taken from the cache and the username passed as a variable.
+ * Each way runs a number of timed iterations after warm-up iterations, like a JMH average-time benchmark
+ * with one fork, and reports microseconds per query with the spread over the iterations.
+ * Both ways must find the same IDs.
+ *
+ * Usage: java storage.XPathBenchmark [users...]
+ */
+package storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathFactory;
+
+import org.w3c.dom.Document;
+
+import storage.UserManager.User;
+import storage.XPathUtils.Expressions;
+
+public final class XPathBenchmark {
+    /** Untimed iterations before measuring, to warm up the JIT */
+    private static final int WARMUP_ITERATIONS = 5;
+
+    /** Timed iterations */
+    private static final int MEASURED_ITERATIONS = 10;
+
+    /** Length of an iteration in nanoseconds */
+    private static final long ITERATION_NANOS = 500_000_000L;
+
+    /** The expression XPathUtils.Expressions.USER_ID used to be, filled with String.format */
+    private static final String USER_ID_TEMPLATE = "//user[username='%s']/id";
+
+    /**
+     * A way of looking up a user's ID by username.
+     */
+    private interface Lookup {
+        String userId(Document document, String username) throws Exception;
+    }
+
+    private XPathBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args Optional user counts of the documents to query
+     * @throws Exception if the benchmark cannot run
+     */
+    public static void main(String[] args) throws Exception {
+        int[] sizes = args.length > 0 ? new int[args.length] : new int[] { 10, 100, 1000 };
+        for (int i = 0; i < args.length; i++) {
+            sizes[i] = Integer.parseInt(args[i]);
+        }
+
+        XPath shared = XPathFactory.newInstance().newXPath();
+        Lookup perCall = (document, username) -> (String) shared.evaluate(String.format(USER_ID_TEMPLATE, username),
+                document, XPathConstants.STRING);
+        Lookup cached = (document, username) -> XPathUtils.queryString(document, Expressions.USER_ID,
+                Map.of(Expressions.USERNAME, username));
+
+        System.out.printf("%-9s %7s %12s %10s%n", "lookup", "users", "us/query", "error");
+        for (int size : sizes) {
+            Document document = generate(size);
+            for (int i = 0; i < size; i++) {
+                String username = "user" + i;
+                String expected = perCall.userId(document, username);
+                if (!expected.equals(cached.userId(document, username))) {
+                    throw new IllegalStateException("Lookups disagree for " + username);
+                }
+            }
+            measure("per-call", perCall, document, size);
+            measure("cached", cached, document, size);
+        }
+    }
+
+    /**
+     * Runs the warm-up and timed iterations of one lookup and prints the mean time per query
+     * with the half-width of its 99.9% confidence interval.
+     */
+    private static void measure(String name, Lookup lookup, Document document, int size) throws Exception {
+        String[] usernames = new String[size];
+        for (int i = 0; i < size; i++) {
+            usernames[i] = "user" + i;
+        }
+        long found = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            found += iterate(lookup, document, usernames)[1];
+        }
+        double[] micros = new double[MEASURED_ITERATIONS];
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            long[] result = iterate(lookup, document, usernames);
+            micros[i] = result[0] / 1e3 / result[1];
+            found += result[1];
+        }
+        double mean = 0;
+        for (double value : micros) {
+            mean += value / micros.length;
+        }
+        double variance = 0;
+        for (double value : micros) {
+            variance += (value - mean) * (value - mean) / (micros.length - 1);
+        }
+        // Student's t for 9 degrees of freedom at 99.9%, as JMH reports for ten iterations
+        double error = 4.781 * Math.sqrt(variance / micros.length);
+        System.out.printf("%-9s %7d %12.2f %10.2f%n", name, size, mean, error);
+        // Keep the results in use so the queries cannot be dropped
+        if (found == 0) {
+            throw new IllegalStateException("Nothing found");
+        }
+    }
+
+    /**
+     * Looks users up in turn for one iteration.
+     *
+     * @return The elapsed nanoseconds and the number of queries
+     */
+    private static long[] iterate(Lookup lookup, Document document, String[] usernames) throws Exception {
+        long start = System.nanoTime();
+        long queries = 0;
+        long elapsed;
+        do {
+            for (int i = 0; i < 16; i++) {
+                if (lookup.userId(document, usernames[(int) (queries % usernames.length)]).isEmpty()) {
+                    throw new IllegalStateException("User not found");
+                }
+                queries++;
+            }
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ITERATION_NANOS);
+        return new long[] { elapsed, queries };
+    }
+
+    private static Document generate(int size) throws Exception {
+        List<User> users = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            users.add(new User(UserManager.formatUserId(i + 1), "user" + i, "10.0." + (i >> 8 & 255) + "." + (i & 255)));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        UserXml.write(users, out);
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new ByteArrayInputStream(out.toByteArray()));
+    }
+}
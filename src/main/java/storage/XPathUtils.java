@@ -1,104 +1,233 @@
 /**
  * XPathUtils class provides utility methods for XPath operations on XML documents.
  * Offers simplified access to common XPath queries and operations.
- * Uses a singleton XPath instance for better performance.
+ * Expressions are compiled once per thread and cached, so a query string is parsed only on its first use.
+ * Values are passed as XPath variables ($name) rather than formatted into the expression, which lets
+ * one compiled expression serve every value and keeps quotes in a value from changing the query.
+ * Neither XPath nor compiled expressions are thread-safe, so every thread has its own evaluator and cache.
  */
 package storage;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import javax.xml.namespace.QName;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
+import javax.xml.xpath.XPathVariableResolver;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.NodeList;
 
 public class XPathUtils {
-    /** Singleton XPathFactory instance for creating XPath objects */
+    /** Most compiled expressions each thread keeps, least recently used dropped first */
+    static final int CACHE_SIZE = 256;
+
+    /** Singleton XPathFactory instance for creating XPath objects; not thread-safe, guarded by itself */
     private static final XPathFactory xPathFactory = XPathFactory.newInstance();
-    
-    /** Singleton XPath instance for performing queries */
-    private static final XPath xPath = xPathFactory.newXPath();
+
+    /** The evaluator of each thread */
+    private static final ThreadLocal<Evaluator> evaluators = ThreadLocal.withInitial(Evaluator::new);
+
+    /**
+     * Compiles and evaluates expressions for one thread.
+     * The XPath resolves variables through the evaluator, so every expression it compiles reads the
+     * variables of the evaluation in progress.
+     */
+    private static final class Evaluator implements XPathVariableResolver {
+        /** XPath compiling this thread's expressions */
+        private final XPath xPath;
+
+        /** Compiled expressions by expression string, in access order */
+        private final Map<String, XPathExpression> compiled = new LinkedHashMap<String, XPathExpression>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, XPathExpression> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+
+        /** Variables of the evaluation in progress, by name */
+        private Map<String, ?> variables = Collections.emptyMap();
+
+        Evaluator() {
+            synchronized (xPathFactory) {
+                xPath = xPathFactory.newXPath();
+            }
+            xPath.setXPathVariableResolver(this);
+        }
+
+        Object evaluate(String expression, Document document, QName returnType, Map<String, ?> variables)
+                throws XPathExpressionException {
+            XPathExpression compiledExpression = compiled.get(expression);
+            if (compiledExpression == null) {
+                compiledExpression = xPath.compile(expression);
+                compiled.put(expression, compiledExpression);
+            }
+            Map<String, ?> previous = this.variables;
+            this.variables = variables;
+            try {
+                return compiledExpression.evaluate(document, returnType);
+            } finally {
+                this.variables = previous;
+            }
+        }
+
+        /**
+         * @return The value of the variable, or null if it was not given, which fails the evaluation
+         */
+        @Override
+        public Object resolveVariable(QName name) {
+            return name.getNamespaceURI().isEmpty() ? variables.get(name.getLocalPart()) : null;
+        }
+    }
 
     /**
      * Queries an XML document for a set of nodes matching the XPath expression.
-     * 
+     *
      * @param document The XML document to query
      * @param expression The XPath expression to evaluate
      * @return A NodeList containing all matching nodes
      * @throws XPathExpressionException if the XPath expression is invalid
      */
     public static NodeList queryNodes(Document document, String expression) throws XPathExpressionException {
-        return (NodeList) xPath.evaluate(expression, document, XPathConstants.NODESET);
+        return queryNodes(document, expression, Collections.emptyMap());
+    }
+
+    /**
+     * Queries an XML document for a set of nodes matching the XPath expression.
+     *
+     * @param document The XML document to query
+     * @param expression The XPath expression to evaluate, referring to variables as $name
+     * @param variables The values of the variables by name: strings, numbers, booleans or node lists
+     * @return A NodeList containing all matching nodes
+     * @throws XPathExpressionException if the XPath expression is invalid or uses a variable not given
+     */
+    public static NodeList queryNodes(Document document, String expression, Map<String, ?> variables)
+            throws XPathExpressionException {
+        return (NodeList) evaluators.get().evaluate(expression, document, XPathConstants.NODESET, variables);
     }
 
     /**
      * Queries an XML document for a single string value.
      * Returns the text content of the first matching node.
-     * 
+     *
      * @param document The XML document to query
      * @param expression The XPath expression to evaluate
      * @return The string value of the first matching node
      * @throws XPathExpressionException if the XPath expression is invalid
      */
     public static String queryString(Document document, String expression) throws XPathExpressionException {
-        return (String) xPath.evaluate(expression, document, XPathConstants.STRING);
+        return queryString(document, expression, Collections.emptyMap());
+    }
+
+    /**
+     * Queries an XML document for a single string value.
+     * Returns the text content of the first matching node.
+     *
+     * @param document The XML document to query
+     * @param expression The XPath expression to evaluate, referring to variables as $name
+     * @param variables The values of the variables by name
+     * @return The string value of the first matching node
+     * @throws XPathExpressionException if the XPath expression is invalid or uses a variable not given
+     */
+    public static String queryString(Document document, String expression, Map<String, ?> variables)
+            throws XPathExpressionException {
+        return (String) evaluators.get().evaluate(expression, document, XPathConstants.STRING, variables);
     }
 
     /**
      * Queries an XML document for a list of string values.
      * Returns the text content of all matching nodes as a list.
-     * 
+     *
      * @param document The XML document to query
      * @param expression The XPath expression to evaluate
      * @return A list of string values from all matching nodes
      * @throws XPathExpressionException if the XPath expression is invalid
      */
     public static List<String> queryStringList(Document document, String expression) throws XPathExpressionException {
-        NodeList nodes = queryNodes(document, expression);
+        return queryStringList(document, expression, Collections.emptyMap());
+    }
+
+    /**
+     * Queries an XML document for a list of string values.
+     * Returns the text content of all matching nodes as a list.
+     *
+     * @param document The XML document to query
+     * @param expression The XPath expression to evaluate, referring to variables as $name
+     * @param variables The values of the variables by name
+     * @return A list of string values from all matching nodes
+     * @throws XPathExpressionException if the XPath expression is invalid or uses a variable not given
+     */
+    public static List<String> queryStringList(Document document, String expression, Map<String, ?> variables)
+            throws XPathExpressionException {
+        NodeList nodes = queryNodes(document, expression, variables);
         List<String> results = new ArrayList<>();
-        
+
         for (int i = 0; i < nodes.getLength(); i++) {
             results.add(nodes.item(i).getTextContent());
         }
-        
+
         return results;
     }
 
     /**
      * Checks if any nodes exist matching the XPath expression.
-     * 
+     *
      * @param document The XML document to query
      * @param expression The XPath expression to evaluate
      * @return true if at least one matching node exists, false otherwise
      * @throws XPathExpressionException if the XPath expression is invalid
      */
     public static boolean nodeExists(Document document, String expression) throws XPathExpressionException {
-        NodeList nodes = queryNodes(document, expression);
+        return nodeExists(document, expression, Collections.emptyMap());
+    }
+
+    /**
+     * Checks if any nodes exist matching the XPath expression.
+     *
+     * @param document The XML document to query
+     * @param expression The XPath expression to evaluate, referring to variables as $name
+     * @param variables The values of the variables by name
+     * @return true if at least one matching node exists, false otherwise
+     * @throws XPathExpressionException if the XPath expression is invalid or uses a variable not given
+     */
+    public static boolean nodeExists(Document document, String expression, Map<String, ?> variables)
+            throws XPathExpressionException {
+        NodeList nodes = queryNodes(document, expression, variables);
         return nodes.getLength() > 0;
     }
 
     /**
      * Inner class containing common XPath expressions used throughout the application.
-     * Expressions use format specifiers (%s) for dynamic values.
+     * Expressions take their values from variables, e.g.
+     * queryNodes(document, USER_BY_USERNAME, Map.of(USERNAME, username)).
      */
     public static class Expressions {
+        /** Name of the variable holding a username */
+        public static final String USERNAME = "username";
+
+        /** Name of the variable holding a user ID */
+        public static final String ID = "id";
+
         /** XPath expression to select all user nodes */
         public static final String ALL_USERS = "//user";
-        
-        /** XPath expression to select a user by username (use String.format with username) */
-        public static final String USER_BY_USERNAME = "//user[username='%s']";
-        
-        /** XPath expression to select a user by ID (use String.format with ID) */
-        public static final String USER_BY_ID = "//user[id='%s']";
-        
-        /** XPath expression to get a user's IP address (use String.format with username) */
-        public static final String USER_IP = "//user[username='%s']/ip";
-        
-        /** XPath expression to get a user's ID (use String.format with username) */
-        public static final String USER_ID = "//user[username='%s']/id";
+
+        /** XPath expression to select a user by username (variable USERNAME) */
+        public static final String USER_BY_USERNAME = "//user[username=$username]";
+
+        /** XPath expression to select a user by ID (variable ID) */
+        public static final String USER_BY_ID = "//user[id=$id]";
+
+        /** XPath expression to get a user's IP address (variable USERNAME) */
+        public static final String USER_IP = "//user[username=$username]/ip";
+
+        /** XPath expression to get a user's ID (variable USERNAME) */
+        public static final String USER_ID = "//user[username=$username]/id";
     }
 }
@@ -0,0 +1,310 @@
+/**
+ * XmlUserStore class keeps users in a users.xml snapshot plus a journal of the users added since.
+ * All users are loaded onto the heap and indexed by username and by id, so lookups take constant time.
+ * New users are appended to the journal, so adding a user costs the same however many exist;
+ * they are visible at once and forced to disk in the background by a GroupCommit, many adds per sync.
+ * If a sync fails, the users it did not make durable are hidden again before their futures fail,
+ * and the store refuses further adds until it is reopened.
+ * Compaction folds the journal into a fresh snapshot. On opening, the snapshot is streamed in with
+ * StAX and the journal replayed on top of it.
+ * Reads take no lock: they go through a view of the users array and the user count, published through
+ * a volatile field after every add. Adds are serialized; they only write past the published count and
+ * add entries to concurrent indexes by username, by id and in username order, which readers skip if they
+ * lie past the count of their view. Adding a user therefore copies nothing but the occasional grown array,
+ * however many users exist, and a prefix search is a seek in the ordered index.
+ */
+package storage;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import javax.xml.stream.XMLStreamException;
+
+import storage.UserManager.User;
+
+final class XmlUserStore implements UserStore {
+    /** Orders index entries by username as UsernameOrder does, ties in the order the users were added */
+    private static final Comparator<Entry> SORTED_ORDER = Comparator.<Entry, User>comparing(entry -> entry.user,
+            UsernameOrder.USERS).thenComparingInt(entry -> entry.position);
+
+    /** The XML snapshot */
+    private final Path snapshotFile;
+
+    /** Journal of users added since the last snapshot */
+    private final UserJournal journal;
+
+    /** Forces appended users to disk in the background */
+    private final GroupCommit commits;
+
+    /** Ensures only one compaction runs at a time */
+    private final Object compactionLock = new Object();
+
+    /** Users in the order they were added, including ones not yet published; guarded by this */
+    private User[] users = new User[16];
+
+    /** Number of users, including ones not yet published; guarded by this */
+    private int count;
+
+    /** Number of users known to be on disk; guarded by this */
+    private int durableCount;
+
+    /** Why a sync failed, or null while the store is healthy; guarded by this */
+    private Exception failure;
+
+    /** Users by username; the first user wins if a username occurs twice. Written only by adds */
+    private final Map<String, Entry> byUsername = new ConcurrentHashMap<>();
+
+    /** Users by id. Written only by adds */
+    private final Map<String, Entry> byId = new ConcurrentHashMap<>();
+
+    /** Users in SORTED_ORDER, for prefix search. Written only by adds */
+    private final NavigableSet<Entry> sorted = new ConcurrentSkipListSet<>(SORTED_ORDER);
+
+    /** What readers see; replaced after every add */
+    private volatile View view;
+
+    /**
+     * Opens a store, loading the snapshot or creating an empty one if it doesn't exist,
+     * and replaying the journal on top. Users already in the snapshot are skipped,
+     * in case a compaction was interrupted.
+     *
+     * @param snapshotFile The users.xml snapshot
+     * @param journalFile The journal of users added since the snapshot
+     * @throws IOException if the files cannot be read or created
+     * @throws XMLStreamException if the snapshot is not a valid users file
+     */
+    XmlUserStore(Path snapshotFile, Path journalFile) throws IOException, XMLStreamException {
+        this.snapshotFile = snapshotFile;
+        if (Files.exists(snapshotFile)) {
+            for (User user : UserXml.read(snapshotFile)) {
+                add(user);
+            }
+        } else {
+            saveSnapshot(snapshotFile, List.of());
+        }
+
+        journal = new UserJournal(journalFile);
+        for (User user : journal.replay()) {
+            if (!byId.containsKey(user.getId())) {
+                add(user);
+            }
+        }
+        durableCount = count;
+        publish();
+        commits = new GroupCommit("user-journal-sync", this::sync);
+    }
+
+    /**
+     * Writes users to an XML snapshot with proper formatting.
+     * The snapshot is written to a temporary file, forced to disk and then moved over the old one,
+     * so a crash leaves either the old or the new snapshot.
+     *
+     * @param target The snapshot file
+     * @param snapshot The users to write, in order
+     * @throws IOException if the snapshot cannot be written
+     * @throws XMLStreamException if the document cannot be written
+     */
+    static void saveSnapshot(Path target, List<User> snapshot) throws IOException, XMLStreamException {
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temporary.toFile())) {
+            BufferedOutputStream buffered = new BufferedOutputStream(out);
+            UserXml.write(snapshot, buffered);
+            buffered.flush();
+            out.getFD().sync();
+        }
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Folds the journal into a fresh XML snapshot and removes the folded records from the journal.
+     * Users can be added while it runs.
+     */
+    @Override
+    public void compact() throws IOException, XMLStreamException {
+        synchronized (compactionLock) {
+            List<User> users;
+            long position;
+            synchronized (this) {
+                if (journal.isEmpty()) {
+                    return;
+                }
+                users = getAllUsers();
+                position = journal.getPosition();
+            }
+            saveSnapshot(snapshotFile, users);
+            journal.discardBefore(position);
+        }
+    }
+
+    /**
+     * Appends the users to the journal and makes them visible; the returned future completes once
+     * a background sync has written and forced the journal.
+     */
+    @Override
+    public synchronized CompletableFuture<List<User>> addUsers(Map<String, String> ipsByUsername)
+            throws IOException {
+        checkHealthy();
+        List<User> added = new ArrayList<>(ipsByUsername.size());
+        try {
+            for (Map.Entry<String, String> entry : ipsByUsername.entrySet()) {
+                User user = new User(UserManager.formatUserId(count + 1), entry.getKey(), entry.getValue());
+                journal.append(user);
+                add(user);
+                added.add(user);
+            }
+        } finally {
+            publish();
+        }
+        return commits.submit(added);
+    }
+
+    /**
+     * Writes and forces the journal up to the users added so far. Runs on the group commit thread.
+     * If it fails, the users not yet durable are hidden and the store is marked failed before
+     * the futures waiting for this sync fail.
+     */
+    private void sync() throws IOException {
+        int covered;
+        long position;
+        synchronized (this) {
+            checkHealthy();
+            covered = count;
+            position = journal.getPosition();
+        }
+        try {
+            journal.sync(position);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                failure = e;
+                publish();
+            }
+            throw e;
+        }
+        synchronized (this) {
+            durableCount = Math.max(durableCount, covered);
+        }
+    }
+
+    /** @throws IOException if a sync has failed since the store was opened; called holding the lock */
+    private void checkHealthy() throws IOException {
+        if (failure != null) {
+            throw new IOException("User store is unavailable after a failed write", failure);
+        }
+    }
+
+    /**
+     * Appends a user past the published count and indexes it. Called holding the lock, or while opening.
+     */
+    private void add(User user) {
+        if (count == users.length) {
+            // Readers keep the old array, whose first count users never change
+            users = Arrays.copyOf(users, count * 2);
+        }
+        users[count] = user;
+        Entry entry = new Entry(user, count);
+        byUsername.putIfAbsent(user.getUsername(), entry);
+        byId.putIfAbsent(user.getId(), entry);
+        sorted.add(entry);
+        count++;
+    }
+
+    /**
+     * Makes the users added so far visible to readers, or only the durable ones once a sync has failed.
+     * Called holding the lock, or while opening.
+     */
+    private void publish() {
+        view = new View(users, failure == null ? count : durableCount);
+    }
+
+    @Override
+    public List<User> getAllUsers() {
+        View current = view;
+        return new ArrayList<>(Arrays.asList(current.users).subList(0, current.count));
+    }
+
+    @Override
+    public User findByUsername(String username) {
+        return view.get(byUsername.get(username));
+    }
+
+    @Override
+    public User findById(String id) {
+        return view.get(byId.get(id));
+    }
+
+    @Override
+    public List<User> searchByPrefix(String prefix, int limit) {
+        View current = view;
+        List<User> found = new ArrayList<>();
+        // Sorts before every user whose username equals the prefix
+        Entry start = new Entry(new User(null, prefix, null), -1);
+        for (Entry entry : sorted.tailSet(start)) {
+            if (found.size() >= limit || !UsernameOrder.hasPrefix(entry.user.getUsername(), prefix)) {
+                break;
+            }
+            if (entry.position < current.count) {
+                found.add(entry.user);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public int size() {
+        return view.count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        commits.close();
+        journal.close();
+    }
+
+    /**
+     * A user and its position in the order of adding, as kept in the indexes.
+     */
+    private static final class Entry {
+        private final User user;
+        private final int position;
+
+        Entry(User user, int position) {
+            this.user = user;
+            this.position = position;
+        }
+    }
+
+    /**
+     * What readers see: the users array and the number of users published in it.
+     * The first count users of the array never change, so a view stays consistent while adds continue.
+     */
+    private static final class View {
+        private final User[] users;
+        private final int count;
+
+        View(User[] users, int count) {
+            this.users = users;
+            this.count = count;
+        }
+
+        /**
+         * @param entry An index entry, or null
+         * @return The entry's user if this view includes it, otherwise null
+         */
+        User get(Entry entry) {
+            return entry != null && entry.position < count ? entry.user : null;
+        }
+    }
+}
@@ -12,7 +12,10 @@ import java.awt.FlowLayout;
 import java.awt.Font;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.lang.reflect.InvocationTargetException;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.swing.BorderFactory;
 import javax.swing.DefaultListModel;
@@ -28,13 +31,17 @@ import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.SwingUtilities;
 import javax.swing.border.EmptyBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 
 import jakarta.jms.JMSException;
 import jakarta.jms.Message;
 import jakarta.jms.MessageListener;
-import jakarta.jms.TextMessage;
 
 import messaging.ActiveMQHandler;
+import messaging.BacklogReplayer;
+import messaging.ChatMessage;
+import messaging.PartitionedDispatcher;
 import storage.UserManager;
 import storage.UserManager.User;
 
@@ -45,6 +52,7 @@ public class ChatScreen extends JFrame {
     /** UI Components */
     private final JTextArea chatArea;
     private final JList<String> userList;
+    private final JTextField contactSearchField;
     private final JTextField messageField;
     private final JButton sendButton;
     private final JButton logoutButton;
@@ -52,6 +60,34 @@ public class ChatScreen extends JFrame {
     /** Message broker handler for real-time communication */
     private final ActiveMQHandler activeMQHandler;
     
+    /** Spreads private messages over worker threads, keeping each sender's messages in order */
+    private volatile PartitionedDispatcher privateDispatcher;
+    
+    /** Messages that arrived while the user was offline, handed out page by page */
+    private BacklogReplayer backlog;
+    
+    /** Replays the backlog page by page off the event dispatch thread */
+    private final ExecutorService backlogExecutor = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "backlog-replay");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    /** The user's queue for private messages */
+    private final String privateQueue;
+    
+    /** Name of the user's durable subscription to the broadcast topic */
+    private static final String BROADCAST_SUBSCRIPTION = "broadcast";
+    
+    /** Number of threads handling private messages */
+    private static final int DISPATCH_PARTITIONS = 4;
+    
+    /** Contact list entry that sends to every user through the broadcast topic */
+    private static final String EVERYONE = "Everyone";
+    
+    /** Most contacts shown for a search; type more of the name to narrow it down */
+    private static final int CONTACT_LIMIT = 100;
+    
     /** ActiveMQ broker port */
     private static final int PORT = 61616;
 
@@ -85,6 +121,27 @@ public class ChatScreen extends JFrame {
         userList.setSelectionBackground(ACCENT_COLOR);
         userList.setSelectionForeground(SECONDARY_COLOR);
         
+        // Filters the contacts by name as the user types
+        contactSearchField = new JTextField();
+        contactSearchField.setFont(new Font("Helvetica", Font.PLAIN, 14));
+        contactSearchField.setBackground(SECONDARY_COLOR);
+        contactSearchField.setForeground(PRIMARY_COLOR);
+        contactSearchField.setCaretColor(PRIMARY_COLOR);
+        contactSearchField.setToolTipText("Search contacts");
+        contactSearchField.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                updateUserList();
+            }
+
+            public void removeUpdate(DocumentEvent e) {
+                updateUserList();
+            }
+
+            public void changedUpdate(DocumentEvent e) {
+                updateUserList();
+            }
+        });
+        
         messageField = new JTextField();
         messageField.setFont(new Font("Helvetica", Font.PLAIN, 14));
         messageField.setBackground(SECONDARY_COLOR);
@@ -94,8 +151,11 @@ public class ChatScreen extends JFrame {
         sendButton = createStyledButton("Send");
         logoutButton = createStyledButton("Logout");
         
-        // Initialize ActiveMQ
+        privateQueue = "queue." + user.getUsername();
+        
+        // Initialize ActiveMQ; the client id keeps durable subscriptions across logins
         activeMQHandler = new ActiveMQHandler();
+        activeMQHandler.setClientId(user.getUsername());
         try {
             activeMQHandler.connect();
             setupActiveMQ();
@@ -138,36 +198,120 @@ public class ChatScreen extends JFrame {
 
     /**
      * Sets up ActiveMQ connection and message handling.
-     * Creates private queue for the user and broadcast topic.
-     * Configures message listener for incoming messages.
+     * Creates private queue for the user, then replays the messages that arrived while the user was
+     * offline in the background; the live listeners take over as soon as the backlog is empty.
      * 
      * @throws JMSException if there's an error in the JMS setup
      */
     private void setupActiveMQ() throws JMSException {
         // Create a queue for private messages
-        String privateQueue = "queue." + currentUser.getUsername();
         activeMQHandler.createQueue(privateQueue);
         
-        // Create a topic for broadcast messages
-        String broadcastTopic = "topic.broadcast";
-        activeMQHandler.createTopic(broadcastTopic);
-        
-        // Set up message listener
-        activeMQHandler.setMessageListener(privateQueue, new MessageListener() {
+        // Page through the private and broadcast backlog
+        backlog = activeMQHandler.createBacklogReplayer(BacklogReplayer.DEFAULT_PAGE_SIZE);
+        backlog.addQueue(privateQueue);
+        backlog.addDurableSubscription(ActiveMQHandler.BROADCAST_TOPIC, BROADCAST_SUBSCRIPTION);
+        backlogExecutor.execute(this::replayBacklog);
+    }
+
+    /**
+     * Shows the backlog page by page, acknowledging each page once it is on screen, so messages the user
+     * has not seen stay with the broker. Waiting for each page to be shown keeps the window responsive
+     * and the client holding no more than a page or two. Once the backlog is empty, closes the replayer
+     * and sets up the live message listeners. Runs on the backlog thread so a slow broker does not
+     * freeze the window.
+     */
+    private void replayBacklog() {
+        try {
+            while (backlog.hasMore() && !backlogExecutor.isShutdown()) {
+                List<ChatMessage> page = backlog.nextPage();
+                if (!page.isEmpty()) {
+                    String text = formatPage(page);
+                    SwingUtilities.invokeAndWait(() -> chatArea.append(text));
+                }
+                backlog.acknowledge();
+            }
+        } catch (JMSException | InvocationTargetException e) {
+            // Whatever was not acknowledged is delivered to the live listeners instead
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        backlog.close();
+        if (!backlogExecutor.isShutdown()) {
+            startListening();
+        }
+    }
+
+    /**
+     * Sets up the live message listeners for private and broadcast messages.
+     */
+    private void startListening() {
+        try {
+            privateDispatcher = new PartitionedDispatcher(createListener(), DISPATCH_PARTITIONS,
+                    PartitionedDispatcher.byProperty(ChatMessage.SENDER_PROPERTY));
+            activeMQHandler.setMessageListener(privateQueue, privateDispatcher);
+            activeMQHandler.subscribeDurable(ActiveMQHandler.BROADCAST_TOPIC, BROADCAST_SUBSCRIPTION,
+                    createListener());
+        } catch (JMSException e) {
+            SwingUtilities.invokeLater(() -> {
+                JOptionPane.showMessageDialog(this, "Error receiving messages: " + e.getMessage());
+            });
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Creates a listener that appends incoming chat messages to the chat area.
+     * 
+     * @return The message listener
+     */
+    private MessageListener createListener() {
+        return new MessageListener() {
             @Override
             public void onMessage(Message message) {
                 try {
-                    if (message instanceof TextMessage) {
-                        String text = ((TextMessage) message).getText();
+                    ChatMessage chatMessage = ChatMessage.fromMessage(message);
+                    if (chatMessage != null) {
+                        String text = formatMessage(chatMessage);
                         SwingUtilities.invokeLater(() -> {
-                            chatArea.append("Received: " + text + "\n");
+                            chatArea.append(text);
                         });
                     }
                 } catch (JMSException e) {
                     e.printStackTrace();
                 }
             }
-        });
+        };
+    }
+
+    /**
+     * Formats received messages as lines of the chat area.
+     * 
+     * @param page The messages, oldest first
+     * @return The lines of all messages
+     */
+    private static String formatPage(List<ChatMessage> page) {
+        StringBuilder text = new StringBuilder();
+        for (ChatMessage message : page) {
+            text.append(formatMessage(message));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Formats a received message as a line of the chat area.
+     * 
+     * @param message The received message
+     * @return The line, labelled as a broadcast or private message
+     */
+    private static String formatMessage(ChatMessage message) {
+        String label = ActiveMQHandler.BROADCAST_TOPIC.equals(message.getConversationId())
+                ? "Broadcast: " : "Received: ";
+        String text = message.getSender() == null ? message.getText()
+                : message.getSender() + ": " + message.getText();
+        return label + text + "\n";
     }
 
     /**
@@ -201,8 +345,9 @@ public class ChatScreen extends JFrame {
         mainPanel.add(topPanel, BorderLayout.NORTH);
 
         // User list panel (now on the left)
-        JPanel userListPanel = new JPanel(new BorderLayout());
+        JPanel userListPanel = new JPanel(new BorderLayout(0, 5));
         userListPanel.setBackground(PRIMARY_COLOR);
+        userListPanel.add(contactSearchField, BorderLayout.NORTH);
         
         JScrollPane userScrollPane = new JScrollPane(userList);
         userScrollPane.setPreferredSize(new Dimension(200, 0));
@@ -256,7 +401,8 @@ public class ChatScreen extends JFrame {
 
     /**
      * Handles sending messages to selected users.
-     * Sends private messages through ActiveMQ and updates the chat display.
+     * Sends private messages through ActiveMQ, or publishes one message to the broadcast topic
+     * when Everyone is selected, and updates the chat display.
      */
     private void sendMessage() {
         String message = messageField.getText().trim();
@@ -264,10 +410,17 @@ public class ChatScreen extends JFrame {
             String selectedUser = userList.getSelectedValue();
             if (selectedUser != null) {
                 try {
-                    // Send private message
-                    String queueName = "queue." + selectedUser;
-                    String fullMessage = currentUser.getUsername() + ": " + message;
-                    activeMQHandler.sendMessage(queueName, fullMessage);
+                    String username = currentUser.getUsername();
+                    if (EVERYONE.equals(selectedUser)) {
+                        // One publish reaches every subscriber
+                        activeMQHandler.publish(ActiveMQHandler.BROADCAST_TOPIC,
+                                new ChatMessage(username, ActiveMQHandler.BROADCAST_TOPIC, message));
+                    } else {
+                        // Send private message
+                        String queueName = "queue." + selectedUser;
+                        activeMQHandler.sendMessage(queueName, new ChatMessage(username,
+                                ChatMessage.getPrivateConversationId(username, selectedUser), message));
+                    }
                     
                     // Update chat area
                     chatArea.append("You to " + selectedUser + ": " + message + "\n");
@@ -296,14 +449,18 @@ public class ChatScreen extends JFrame {
 
     /**
      * Updates the list of available users in the chat interface.
-     * Called when the user list changes.
+     * Shows the first contacts whose name starts with the search text, so the list stays small
+     * however many users exist. Called when the search text or the user list changes.
      */
     private void updateUserList() {
-        List<User> users = UserManager.getInstance().getAllUsers();
+        String prefix = contactSearchField.getText().trim();
+        // One more than the limit, in case the current user is among them
+        List<User> users = UserManager.getInstance().searchByPrefix(prefix, CONTACT_LIMIT + 1);
         DefaultListModel<String> listModel = new DefaultListModel<>();
+        listModel.addElement(EVERYONE);
         
         for (User user : users) {
-            if (!user.getUsername().equals(currentUser.getUsername())) {
+            if (!user.getUsername().equals(currentUser.getUsername()) && listModel.size() <= CONTACT_LIMIT) {
                 listModel.addElement(user.getUsername());
             }
         }
@@ -316,10 +473,14 @@ public class ChatScreen extends JFrame {
      * Closes ActiveMQ connection and performs necessary cleanup.
      */
     private void cleanup() {
+        backlogExecutor.shutdown();
         try {
             if (activeMQHandler != null) {
                 activeMQHandler.disconnect();
             }
+            if (privateDispatcher != null) {
+                privateDispatcher.close();
+            }
         } catch (JMSException e) {
             e.printStackTrace();
         }
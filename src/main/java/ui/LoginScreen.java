@@ -10,6 +10,7 @@ import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.net.InetAddress;
+import java.util.concurrent.CompletionException;
 
 import javax.swing.Box;
 import javax.swing.BoxLayout;
@@ -20,7 +21,10 @@ import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 import javax.swing.border.EmptyBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 
 import storage.UserManager;
 
@@ -34,6 +38,9 @@ public class LoginScreen extends JFrame {
     private JButton createAccountButton;
     private JComboBox<String> userComboBox;
     
+    /** Most existing users offered in the dropdown; typing a name narrows them down */
+    private static final int SUGGESTION_LIMIT = 50;
+    
     /** UI Color scheme constants */
     private static final Color PRIMARY_COLOR = new Color(44, 62, 80); // #2c3e50 - Dark blue-gray
     private static final Color SECONDARY_COLOR = new Color(236, 240, 241); // #ecf0f1 - Light gray
@@ -84,6 +91,20 @@ public class LoginScreen extends JFrame {
         usernameField.setBackground(SECONDARY_COLOR);
         usernameField.setForeground(PRIMARY_COLOR);
         usernameField.setCaretColor(PRIMARY_COLOR);
+        // Typing a name offers the existing users starting with it
+        usernameField.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                updateUserList();
+            }
+
+            public void removeUpdate(DocumentEvent e) {
+                updateUserList();
+            }
+
+            public void changedUpdate(DocumentEvent e) {
+                updateUserList();
+            }
+        });
         mainPanel.add(usernameField);
         mainPanel.add(Box.createVerticalStrut(15));
 
@@ -158,14 +179,23 @@ public class LoginScreen extends JFrame {
 
     /**
      * Updates the dropdown list of existing users.
-     * Called when the user list changes (e.g., after creating a new account).
+     * Offers the first users whose name starts with the text in the username field.
+     * Called when that text or the user list changes (e.g., after creating a new account).
      */
     private void updateUserList() {
+        if (userComboBox == null) {
+            return;
+        }
         userComboBox.removeAllItems();
         userComboBox.addItem("Select existing user...");
-        for (UserManager.User user : userManager.getAllUsers()) {
+        String prefix = usernameField.getText().trim();
+        for (UserManager.User user : userManager.searchByPrefix(prefix, SUGGESTION_LIMIT)) {
             userComboBox.addItem(user.getUsername());
         }
+        // Preselect the only match, so typing a full name and pressing Login is enough
+        if (!prefix.isEmpty() && userComboBox.getItemCount() == 2) {
+            userComboBox.setSelectedIndex(1);
+        }
     }
 
     /**
@@ -188,7 +218,7 @@ public class LoginScreen extends JFrame {
     /**
      * Handles the create account button click event.
      * Validates the username and creates a new user account if valid.
-     * Automatically logs in the new user after account creation.
+     * The account is written in the background; the new user is logged in once it is on disk.
      */
     private void handleCreateAccount() {
         String username = usernameField.getText().trim();
@@ -204,13 +234,22 @@ public class LoginScreen extends JFrame {
 
         try {
             String ip = InetAddress.getLocalHost().getHostAddress();
-            userManager.addUser(username, ip);
-            updateUserList();
-            usernameField.setText("");
-            
-            UserManager.User newUser = userManager.findUserByUsername(username);
-            openChatScreen(newUser);
+            createAccountButton.setEnabled(false);
+            userManager.addUser(username, ip).whenComplete((newUser, error) -> SwingUtilities.invokeLater(() -> {
+                createAccountButton.setEnabled(true);
+                if (error != null) {
+                    // The user was not stored and is no longer listed
+                    updateUserList();
+                    Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                    JOptionPane.showMessageDialog(this, "Error creating account: " + cause.getMessage());
+                    return;
+                }
+                updateUserList();
+                usernameField.setText("");
+                openChatScreen(newUser);
+            }));
         } catch (Exception e) {
+            createAccountButton.setEnabled(true);
             JOptionPane.showMessageDialog(this, "Error creating account: " + e.getMessage());
         }
     }